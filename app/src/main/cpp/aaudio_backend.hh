@@ -0,0 +1,200 @@
+/*
+AAudio backend
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+#pragma once
+
+#include <atomic>
+#include <cstdint>
+#include <dlfcn.h>
+#include "audio_backend.hh"
+
+/*
+AAudio only exists since API level 26 but we still support 21,
+so instead of linking against libaaudio.so, we look up what we need
+at run time and declare the few types and constants ourselves.
+*/
+class AAudioBackend : public AudioBackend {
+	typedef struct AAudioStreamStruct Stream;
+	typedef struct AAudioStreamBuilderStruct Builder;
+	typedef int32_t (*DataCallback)(Stream *, void *, void *, int32_t);
+	typedef void (*ErrorCallback)(Stream *, void *, int32_t);
+	enum {
+		OK = 0,
+		DIRECTION_OUTPUT = 0,
+		DIRECTION_INPUT = 1,
+		FORMAT_PCM_I16 = 1,
+		SHARING_MODE_SHARED = 1,
+		PERFORMANCE_MODE_LOW_LATENCY = 12,
+		CALLBACK_RESULT_CONTINUE = 0,
+		CALLBACK_RESULT_STOP = 1,
+	};
+	struct Library {
+		void *handle = nullptr;
+		int32_t (*createStreamBuilder)(Builder **);
+		void (*setDirection)(Builder *, int32_t);
+		void (*setSampleRate)(Builder *, int32_t);
+		void (*setChannelCount)(Builder *, int32_t);
+		void (*setFormat)(Builder *, int32_t);
+		void (*setSharingMode)(Builder *, int32_t);
+		void (*setPerformanceMode)(Builder *, int32_t);
+		void (*setDataCallback)(Builder *, DataCallback, void *);
+		void (*setErrorCallback)(Builder *, ErrorCallback, void *);
+		// API level 28, may be missing
+		void (*setInputPreset)(Builder *, int32_t);
+		int32_t (*openStream)(Builder *, Stream **);
+		int32_t (*deleteBuilder)(Builder *);
+		int32_t (*requestStart)(Stream *);
+		int32_t (*requestStop)(Stream *);
+		int32_t (*close)(Stream *);
+		int32_t (*getSampleRate)(Stream *);
+		int32_t (*getChannelCount)(Stream *);
+
+		template<typename TYPE>
+		bool load(TYPE &function, const char *name) {
+			function = reinterpret_cast<TYPE>(dlsym(handle, name));
+			return function != nullptr;
+		}
+
+		bool load() {
+			if (handle)
+				return true;
+			handle = dlopen("libaaudio.so", RTLD_NOW);
+			if (!handle)
+				return false;
+			load(setInputPreset, "AAudioStreamBuilder_setInputPreset");
+			if (load(createStreamBuilder, "AAudio_createStreamBuilder")
+				&& load(setDirection, "AAudioStreamBuilder_setDirection")
+				&& load(setSampleRate, "AAudioStreamBuilder_setSampleRate")
+				&& load(setChannelCount, "AAudioStreamBuilder_setChannelCount")
+				&& load(setFormat, "AAudioStreamBuilder_setFormat")
+				&& load(setSharingMode, "AAudioStreamBuilder_setSharingMode")
+				&& load(setPerformanceMode, "AAudioStreamBuilder_setPerformanceMode")
+				&& load(setDataCallback, "AAudioStreamBuilder_setDataCallback")
+				&& load(setErrorCallback, "AAudioStreamBuilder_setErrorCallback")
+				&& load(openStream, "AAudioStreamBuilder_openStream")
+				&& load(deleteBuilder, "AAudioStreamBuilder_delete")
+				&& load(requestStart, "AAudioStream_requestStart")
+				&& load(requestStop, "AAudioStream_requestStop")
+				&& load(close, "AAudioStream_close")
+				&& load(getSampleRate, "AAudioStream_getSampleRate")
+				&& load(getChannelCount, "AAudioStream_getChannelCount"))
+				return true;
+			dlclose(handle);
+			handle = nullptr;
+			return false;
+		}
+	};
+	static Library &library() {
+		static Library instance;
+		return instance;
+	}
+	Library &aaudio;
+	std::atomic<bool> active{false};
+	AudioCallback *callback = nullptr;
+	Stream *input = nullptr, *output = nullptr;
+	int rate, capture_channels, playback_channels, input_preset;
+
+	static int32_t capture(Stream *, void *user, void *data, int32_t frames) {
+		auto self = reinterpret_cast<AAudioBackend *>(user);
+		if (!self->active.load(std::memory_order_relaxed))
+			return CALLBACK_RESULT_STOP;
+		self->callback->capture(reinterpret_cast<const int16_t *>(data), frames);
+		return CALLBACK_RESULT_CONTINUE;
+	}
+
+	static int32_t playback(Stream *, void *user, void *data, int32_t frames) {
+		auto self = reinterpret_cast<AAudioBackend *>(user);
+		if (!self->active.load(std::memory_order_relaxed))
+			return CALLBACK_RESULT_STOP;
+		self->callback->playback(reinterpret_cast<int16_t *>(data), frames);
+		return CALLBACK_RESULT_CONTINUE;
+	}
+
+	// runs on a thread of AAudio, which forbids stopping or closing the stream right here
+	static void error(Stream *, void *user, int32_t) {
+		reinterpret_cast<AAudioBackend *>(user)->active = false;
+	}
+
+	Stream *open(int direction, int channels, DataCallback data_callback) {
+		Builder *builder;
+		if (aaudio.createStreamBuilder(&builder) != OK)
+			return nullptr;
+		aaudio.setDirection(builder, direction);
+		aaudio.setSampleRate(builder, rate);
+		aaudio.setChannelCount(builder, channels);
+		aaudio.setFormat(builder, FORMAT_PCM_I16);
+		aaudio.setSharingMode(builder, SHARING_MODE_SHARED);
+		aaudio.setPerformanceMode(builder, PERFORMANCE_MODE_LOW_LATENCY);
+		aaudio.setDataCallback(builder, data_callback, this);
+		aaudio.setErrorCallback(builder, error, this);
+		if (direction == DIRECTION_INPUT && input_preset && aaudio.setInputPreset)
+			aaudio.setInputPreset(builder, input_preset);
+		Stream *stream;
+		int32_t result = aaudio.openStream(builder, &stream);
+		aaudio.deleteBuilder(builder);
+		if (result != OK)
+			return nullptr;
+		// we neither convert rates nor channels, AAudio has to do that for us
+		if (aaudio.getSampleRate(stream) != rate || aaudio.getChannelCount(stream) != channels) {
+			aaudio.close(stream);
+			return nullptr;
+		}
+		return stream;
+	}
+
+	void close(Stream *&stream) {
+		if (!stream)
+			return;
+		aaudio.requestStop(stream);
+		aaudio.close(stream);
+		stream = nullptr;
+	}
+
+public:
+	// channel counts of zero leave that direction alone, input presets match MediaRecorder.AudioSource
+	AAudioBackend(int rate, int capture_channels, int playback_channels, int input_preset) :
+		aaudio(library()), rate(rate), capture_channels(capture_channels),
+		playback_channels(playback_channels), input_preset(input_preset) {
+	}
+
+	static bool available() {
+		return library().load();
+	}
+
+	bool start(AudioCallback *cb) final {
+		if (input || output || !available())
+			return false;
+		callback = cb;
+		active = true;
+		if (capture_channels && !(input = open(DIRECTION_INPUT, capture_channels, capture)))
+			goto fail;
+		if (playback_channels && !(output = open(DIRECTION_OUTPUT, playback_channels, playback)))
+			goto fail;
+		if (input && aaudio.requestStart(input) != OK)
+			goto fail;
+		if (output && aaudio.requestStart(output) != OK)
+			goto fail;
+		return true;
+		fail:
+		stop();
+		return false;
+	}
+
+	void stop() final {
+		active = false;
+		close(input);
+		close(output);
+	}
+
+	bool running() final {
+		return active;
+	}
+
+	~AAudioBackend() override {
+		stop();
+	}
+};
+
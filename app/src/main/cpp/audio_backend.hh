@@ -0,0 +1,30 @@
+/*
+Audio backend interface
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+#pragma once
+
+#include <cstdint>
+
+// called from the audio thread of the backend: no allocations, no blocking
+struct AudioCallback {
+	virtual void capture(const int16_t *samples, int frames) = 0;
+
+	virtual void playback(int16_t *samples, int frames) = 0;
+
+	virtual ~AudioCallback() = default;
+};
+
+struct AudioBackend {
+	virtual bool start(AudioCallback *) = 0;
+
+	virtual void stop() = 0;
+
+	// false after the backend ran out of input or lost its device
+	virtual bool running() = 0;
+
+	virtual ~AudioBackend() = default;
+};
+
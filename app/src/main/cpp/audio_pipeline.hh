@@ -0,0 +1,186 @@
+/*
+Glue between audio backends and the modem
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+#pragma once
+
+#include <algorithm>
+#include <atomic>
+#include <chrono>
+#include <mutex>
+#include <thread>
+#include "audio_backend.hh"
+#include "encoder.hh"
+#include "decoder.hh"
+
+/*
+The audio thread only copies the captured frames into a ring buffer,
+feed and process run on a worker thread of our own, so neither the
+search for the preamble nor the polar decoder can make the backend miss
+its deadline. The worker hands the frames to the decoder in periods of
+capture_period frames, so feed and process see the same chunks as with
+AudioRecord, no matter how many frames the backend delivers at once.
+Once the ring buffer is full, frames are dropped until the worker has
+caught up with everything in front of them, then the decoder gets told
+about the gap, so it can realign the bursts in flight.
+Without a deadline to keep, as with a file read as fast as possible,
+the audio thread may instead wait for room and nothing gets dropped.
+*/
+class AudioPipeline : public AudioCallback {
+	// enough for a symbol at 48000 Hz in stereo
+	static const int max_period = (1440 * 48000) / 8000;
+	static const int ring_frames = 1 << 15;
+	std::mutex &mutex;
+	DecoderInterface *const *decoder;
+	EncoderInterface *encoder;
+	int capture_channels, capture_select, capture_period;
+	int playback_channels, playback_select;
+	int output_count = 0, output_index = 0;
+	bool lossless;
+	std::atomic<bool> transmitting{false};
+	std::atomic<bool> active{true};
+	// frames written and read so far, both only ever grow and wrap around together
+	std::atomic<unsigned> ring_write{0}, ring_read{0};
+	// nothing gets written while there are dropped frames the worker did not report yet
+	std::atomic<int> dropped{0};
+	std::thread worker;
+	int16_t ring[2 * ring_frames];
+	int16_t chunk[2 * max_period];
+	int16_t output[2 * max_period];
+
+	// copies frames out of the ring buffer into chunk, in one piece
+	void unwrap(unsigned position, int frames) {
+		for (int i = 0; i < frames; ++i) {
+			const int16_t *frame = ring + ((position + i) % ring_frames) * capture_channels;
+			std::copy(frame, frame + capture_channels, chunk + i * capture_channels);
+		}
+	}
+
+	void feed(int frames) {
+		std::lock_guard<std::mutex> lock(mutex);
+		if (*decoder && (*decoder)->feed(chunk, frames, capture_select))
+			(*decoder)->process();
+	}
+
+	void report(int frames) {
+		std::lock_guard<std::mutex> lock(mutex);
+		if (*decoder)
+			(*decoder)->lost(frames);
+	}
+
+	// returns false once there was nothing left to do
+	bool drain() {
+		// the frames in front of a gap were all written before it got counted
+		int gap = dropped.load(std::memory_order_acquire);
+		unsigned position = ring_read.load(std::memory_order_relaxed);
+		int available = ring_write.load(std::memory_order_acquire) - position;
+		int frames = std::min(available, capture_period);
+		if (frames < capture_period && !gap)
+			return false;
+		if (frames) {
+			unwrap(position, frames);
+			ring_read.store(position + frames, std::memory_order_release);
+			feed(frames);
+		}
+		// the rest, if any, goes in front of the gap with the next ones
+		if (gap && frames == available)
+			report(dropped.exchange(0, std::memory_order_acq_rel));
+		return true;
+	}
+
+	void work() {
+		// polls every half a period, so the audio thread never has to wake us up
+		auto idle = std::chrono::milliseconds(10);
+		while (active.load(std::memory_order_acquire))
+			if (!drain())
+				std::this_thread::sleep_for(idle);
+		while (drain());
+	}
+
+public:
+	AudioPipeline(std::mutex &mutex, DecoderInterface *const *decoder, int capture_rate, int capture_select,
+		EncoderInterface *encoder = nullptr, int playback_select = 0, bool lossless = false) :
+		mutex(mutex), decoder(decoder), encoder(encoder),
+		capture_channels(capture_select ? 2 : 1), capture_select(capture_select), capture_period(std::min(capture_rate / 50, max_period)),
+		playback_channels(playback_select ? 2 : 1), playback_select(playback_select), lossless(lossless) {
+		worker = std::thread(&AudioPipeline::work, this);
+	}
+
+	// decodes what is still in the ring buffer, stop the backend first
+	void finish() {
+		active.store(false, std::memory_order_release);
+		if (worker.joinable())
+			worker.join();
+	}
+
+	~AudioPipeline() override {
+		finish();
+	}
+
+	int captureChannels() const {
+		return capture_channels;
+	}
+
+	int playbackChannels() const {
+		return playback_channels;
+	}
+
+	// the encoder must be configured and left alone until busy() returns false
+	bool transmit() {
+		if (!encoder || encoder->period() > max_period)
+			return false;
+		transmitting.store(true, std::memory_order_release);
+		return true;
+	}
+
+	// frames captured but not decoded yet
+	int backlog() const {
+		return ring_write.load(std::memory_order_acquire) - ring_read.load(std::memory_order_acquire);
+	}
+
+	bool busy() const {
+		return transmitting.load(std::memory_order_acquire);
+	}
+
+	void capture(const int16_t *samples, int frames) final {
+		unsigned position = ring_write.load(std::memory_order_relaxed);
+		if (lossless) {
+			while (int(position - ring_read.load(std::memory_order_acquire)) + frames > ring_frames)
+				std::this_thread::yield();
+		}
+		int take = 0;
+		if (!dropped.load(std::memory_order_acquire))
+			take = std::min(frames, ring_frames - int(position - ring_read.load(std::memory_order_acquire)));
+		for (int i = 0; i < take; ++i) {
+			const int16_t *frame = samples + i * capture_channels;
+			std::copy(frame, frame + capture_channels, ring + ((position + i) % ring_frames) * capture_channels);
+		}
+		ring_write.store(position + take, std::memory_order_release);
+		if (take < frames)
+			dropped.fetch_add(frames - take, std::memory_order_acq_rel);
+	}
+
+	void playback(int16_t *samples, int frames) final {
+		while (frames > 0) {
+			if (output_index == output_count) {
+				if (!busy())
+					break;
+				if (!encoder->produce(output, playback_select)) {
+					transmitting.store(false, std::memory_order_release);
+					break;
+				}
+				output_count = encoder->period();
+				output_index = 0;
+			}
+			int copy = std::min(frames, output_count - output_index);
+			std::copy(output + output_index * playback_channels, output + (output_index + copy) * playback_channels, samples);
+			output_index += copy;
+			samples += copy * playback_channels;
+			frames -= copy;
+		}
+		std::fill(samples, samples + frames * playback_channels, 0);
+	}
+};
+
@@ -0,0 +1,38 @@
+/*
+Fixed-point DC Blocker
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+#pragma once
+
+#include "q15.hh"
+
+namespace DSP {
+
+// same as BlockDC, but the output keeps 14 more fractional bits around to avoid limit cycles
+class BlockDCQ15
+{
+	static const int frac = 14;
+	int32_t x1, y1;
+	int32_t a, b;
+public:
+	constexpr BlockDCQ15() : x1(0), y1(0), a(0), b(16384)
+	{
+	}
+	void samples(int s)
+	{
+		a = (32768 * (s - 1) + s / 2) / s;
+		b = (32768 + a + 1) / 2;
+	}
+	int16_t operator()(int16_t x0)
+	{
+		int64_t acc = int64_t(b) * ((x0 - x1) * (1 << frac)) + int64_t(a) * y1;
+		int32_t y0 = (acc + (1 << 14)) >> 15;
+		x1 = x0; y1 = y0;
+		return round_q15(y0, frac);
+	}
+};
+
+}
+
@@ -83,6 +83,12 @@ static constexpr Complex<T> operator * (T a, Complex<T> b)
 	return Complex<T>(a * b.real(), a * b.imag());
 }
 
+template <typename T>
+static constexpr Complex<T> operator * (Complex<T> a, T b)
+{
+	return Complex<T>(a.real() * b, a.imag() * b);
+}
+
 template <typename T>
 static constexpr Complex<T> operator / (Complex<T> a, T b)
 {
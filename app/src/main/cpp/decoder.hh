@@ -7,18 +7,24 @@ Copyright 2022 Ahmet Inan <inan@aicodix.de>
 #pragma once
 
 #include <cmath>
+#include <numeric>
 #include <iostream>
 
 namespace DSP { using std::abs; using std::min; using std::cos; using std::sin; }
 
 #include "schmidl_cox.hh"
+#include "schmidl_cox_q15.hh"
 #include "bip_buffer.hh"
+#include "resampler.hh"
 #include "theil_sen.hh"
 #include "xorshift.hh"
 #include "decibel.hh"
 #include "complex.hh"
 #include "hilbert.hh"
 #include "blockdc.hh"
+#include "hilbert_q15.hh"
+#include "blockdc_q15.hh"
+#include "sub_band.hh"
 #include "filter.hh"
 #include "window.hh"
 #include "coeffs.hh"
@@ -30,6 +36,7 @@ namespace DSP { using std::abs; using std::min; using std::cos; using std::sin;
 #include "fft.hh"
 #include "mls.hh"
 #include "crc.hh"
+#include "metrics.hh"
 #include "osd.hh"
 #include "psk.hh"
 
@@ -41,29 +48,89 @@ namespace DSP { using std::abs; using std::min; using std::cos; using std::sin;
 #define STATUS_NOPE 5
 #define STATUS_PING 6
 
+// events that freeze the black box history, the same bits as in MainActivity
+#define DUMP_FAIL 1
+#define DUMP_NOPE 2
+#define DUMP_DECODE 4
+
+// fixed layout, read by the Java side straight from a direct ByteBuffer
+struct DecoderEvent {
+	int32_t status;
+	int32_t mode;
+	int32_t result;
+	float cfo;
+	// samples at the modem rate from the start of the preamble to the newest sample
+	int32_t position;
+	// average precision() of the payload symbols in dB
+	float precision;
+	uint8_t call[12];
+	uint8_t payload[172];
+	// long bursts deliver their payload in several STATUS_DONE events of 170 bytes each
+	int32_t segment;
+	int32_t segments;
+};
+
+static_assert(sizeof(DecoderEvent) == 216, "DecoderEvent layout changed");
+
+// the same for every rate, so all decoders share one copy
+inline const int8_t *preamble_generator() {
+	static const struct Matrix {
+		int8_t data[255 * 71];
+
+		Matrix() {
+			CODE::BoseChaudhuriHocquenghemGenerator<255, 71>::matrix(data, true, {
+				0b100011101, 0b101110111, 0b111110011, 0b101101001,
+				0b110111101, 0b111100111, 0b100101011, 0b111010111,
+				0b000010011, 0b101100101, 0b110001011, 0b101100011,
+				0b100011011, 0b100111111, 0b110001101, 0b100101101,
+				0b101011111, 0b111111001, 0b111000011, 0b100111001,
+				0b110101001, 0b000011111, 0b110000111, 0b110110001});
+		}
+	} matrix;
+	return matrix.data;
+}
+
 struct DecoderInterface {
+	static const int spectrum_width = 360, spectrum_height = 128;
+	static const int spectrogram_width = 360, spectrogram_height = 128;
+	// upper bound of the events a single process() call adds
+	static const int process_events = 8;
+
 	virtual bool feed(const int16_t *, int, int) = 0;
 
 	virtual int process() = 0;
 
-	virtual void spectrum(uint32_t *, uint32_t *, int) = 0;
+	virtual void lost(int) = 0;
+
+	virtual int poll(DecoderEvent *, int) = 0;
+
+	virtual Metrics *metrics() = 0;
+
+	virtual void blackbox(int, int) = 0;
+
+	virtual void fixed_point(bool) = 0;
+
+	virtual void multi_carrier(bool) = 0;
+
+	virtual void carrier_range(int, int) = 0;
 
-	virtual void staged(float *, int32_t *, uint8_t *) = 0;
+	virtual int dump(int16_t *, int) = 0;
 
-	virtual int fetch(uint8_t *) = 0;
+	virtual void discard() = 0;
+
+	virtual int spectrum(uint32_t *, uint32_t *, int) = 0;
 
 	virtual int rate() = 0;
 
 	virtual ~DecoderInterface() = default;
 };
 
-template<int RATE>
+template<int RATE, int CAPTURE = RATE>
 class Decoder : public DecoderInterface {
+	static_assert(CAPTURE >= RATE, "resampler only decimates");
 	typedef DSP::Complex<float> cmplx;
 	typedef DSP::Const<float> Const;
 	typedef int8_t code_type;
-	static const int spectrum_width = 360, spectrum_height = 128;
-	static const int spectrogram_width = 360, spectrogram_height = 128;
 	static const int code_order = 11;
 	static const int mod_bits = 2;
 	static const int code_len = 1 << code_order;
@@ -85,39 +152,171 @@ class Decoder : public DecoderInterface {
 	static const int pay_car_off = -pay_car_cnt / 2;
 	static const int buffer_length = 4 * extended_length;
 	static const int search_position = extended_length;
+	static const int event_count = 16;
+	static const int band_count = 4;
+	static const int band_taps = ((65 * RATE) / 8000) | 1;
+	static const int context_count = 4;
+	static const int candidate_count = 4;
+	static const int recent_count = 8;
+	static_assert(candidate_count + context_count <= process_events, "process() could add too many events");
+	static_assert(spectrum_width <= stft_length / 2 + 1, "real STFT too short for the spectrum");
+	static const int history_length = 4 * RATE;
+	static const int resample_up = RATE / std::gcd(RATE, CAPTURE);
+	static const int resample_down = CAPTURE / std::gcd(RATE, CAPTURE);
+	static const int resample_taps = RATE == CAPTURE ? 1 : (CAPTURE / 100) | 1;
+	typedef SchmidlCox<float, cmplx, search_position, symbol_length / 2, guard_length> Correlator;
+	typedef SchmidlCoxQ15<float, cmplx, search_position, symbol_length / 2, guard_length> CorrelatorQ15;
+	typedef DSP::Resampler<float, cmplx, resample_up, resample_down, resample_taps> AnalyticResampler;
+	typedef DSP::Resampler<cmplx, float, resample_up, resample_down, resample_taps> ComplexResampler;
+	typedef DSP::SubBand<cmplx, band_taps> BandFilter;
+
+	// immutable after construction and shared by all decoders of the same rates
+	struct Tables {
+		DSP::Hann<float> hann;
+		DSP::LowPass2<float> lowpass;
+		DSP::Coeffs<window_length, float, true> window;
+		typename AnalyticResampler::coeffs_type analytic;
+		typename ComplexResampler::coeffs_type complex;
+		cmplx kernel[symbol_length / 2];
+		uint32_t palette[256];
+
+		Tables() : lowpass(1, symbol_length), window(&hann, &lowpass), analytic(analytic_kernel), complex(complex_kernel) {
+			cmplx sequence[symbol_length / 2];
+			CODE::MLS seq(cor_seq_poly);
+			for (int i = 0; i < symbol_length / 2; ++i)
+				sequence[i] = 0;
+			for (int i = 0; i < cor_seq_len; ++i)
+				sequence[(i + cor_seq_off / 2 + symbol_length / 2) % (symbol_length / 2)] = nrz(seq());
+			Correlator::kernel(kernel, sequence);
+			for (int i = 0; i < 256; ++i)
+				palette[i] = abgr(rainbow(i / 255.f));
+		}
+	};
+
+	static const Tables &tables() {
+		static const Tables instance;
+		return instance;
+	}
+
+	/*
+	The correlator over the whole passband only ever sees the strongest burst,
+	as every other burst on the air at the same time adds to its power but not
+	to its correlation. Each sub-band gets a correlator of its own, which only
+	has to share its band with the bursts overlapping it in frequency.
+	Preamble and payload are still demodulated from the whole passband.
+	*/
+	struct Band {
+		BandFilter filter;
+		Correlator correlator;
+		DSP::BipBuffer<cmplx, buffer_length> buffer;
+
+		Band() : correlator(tables().kernel) {}
+	};
+
+	// demodulation state of a burst, one for each burst decoded at the same time
+	struct Context {
+		DSP::Phasor<cmplx> osc;
+		cmplx prev[pay_car_cnt];
+		code_type code[code_len];
+		int symbol_number = symbol_count;
+		int symbol_position = 0;
+		int segments = 1;
+		int mode = 0;
+		float cfo_rad = 0;
+		uint64_t call = 0;
+		int64_t clock = 0;
+		float precision_sum = 0;
+		// after a gap in the capture: symbols still to read from before it and how far back those are,
+		// symbols to erase, symbols to piece together from both sides of it and where the next of those
+		// starts relative to it, symbols to read at once with the next one, whether the symbol before
+		// got erased and how many of the current codeword were erased
+		int lag = 0;
+		int ahead = 0;
+		int erase = 0;
+		int splice = 0;
+		int start = 0;
+		int owed = 0;
+		bool orphan = false;
+		int erased = 0;
+
+		bool busy() const {
+			return symbol_number < symbol_count * segments;
+		}
+	};
+
+	struct Candidate {
+		float cfo_rad;
+		int position;
+	};
+
+	struct Sighting {
+		float cfo_rad;
+		int64_t clock;
+	};
+
+	const Tables &shared;
+	const int8_t *generator;
 	DSP::FastFourierTransform<symbol_length, cmplx, -1> fwd;
 	DSP::FastFourierTransform<stft_length, cmplx, -1> stft;
-	SchmidlCox<float, cmplx, search_position, symbol_length / 2, guard_length> correlator;
+	DSP::RealToHalfComplexTransform<stft_length, cmplx> real_stft;
+	Correlator correlator;
 	DSP::BlockDC<float, float> block_dc;
 	DSP::Hilbert<cmplx, filter_length> hilbert;
+	CorrelatorQ15 correlator_q15;
+	DSP::BlockDCQ15 block_dc_q15;
+	DSP::HilbertQ15<filter_length> hilbert_q15;
+	AnalyticResampler analytic_resampler;
+	ComplexResampler complex_resampler;
 	DSP::BipBuffer<cmplx, buffer_length> buffer;
+	DSP::BipBuffer<DSP::ComplexQ15, buffer_length> buffer_q15;
 	DSP::TheilSenEstimator<float, pay_car_cnt> tse;
-	DSP::Phasor<cmplx> osc;
-	DSP::Hann<float> hann;
-	DSP::LowPass2<float> lowpass;
-	DSP::Coeffs<window_length, float, true> window;
 	CODE::CRC<uint16_t> crc;
 	CODE::OrderedStatisticsDecoder<255, 71, 2> osd;
 	PolarDecoder<code_type> polar;
-	cmplx temp[extended_length], freq[symbol_length], prev[pay_car_cnt], cons[pay_car_cnt];
+	Band bands[band_count];
+	Context contexts[context_count];
+	Candidate stored[candidate_count], staged[candidate_count];
+	Sighting recent[recent_count];
+	cmplx temp[extended_length], freq[symbol_length], cons[pay_car_cnt];
 	float power[spectrum_width]{}, index[pay_car_cnt]{}, phase[pay_car_cnt]{};
-	code_type code[code_len];
-	int8_t generator[255 * 71];
+	float stft_real[stft_length];
 	int8_t soft[pre_seq_len];
 	uint8_t data[(pre_seq_len + 7) / 8];
-	int symbol_number = symbol_count;
-	int symbol_position = search_position + extended_length;
-	int stored_position = 0;
+	DecoderEvent events[event_count];
+	Metrics stats;
+	int event_head = 0;
+	int event_size = 0;
+	int stored_count = 0;
+	int staged_count = 0;
+	int recent_size = 0;
+	int recent_next = 0;
 	int staged_position = 0;
 	int staged_mode = 0;
-	int operation_mode = 0;
 	int accumulated = 0;
-	float stored_cfo_rad = 0;
+	int history_position = 0;
+	int history_delay = 0;
+	int history_hold = 0;
+	int history_after = 0;
+	int history_triggers = 0;
+	bool history_enabled = false;
+	int64_t sample_clock = 0;
+	int64_t buffer_clock = 0;
+	int64_t gap_clock = 0;
+	int gap_length = 0;
+	int rearm_delay = 0;
 	float staged_cfo_rad = 0;
+	float cfo_min = -Const::Pi();
+	float cfo_max = Const::Pi();
 	uint64_t staged_call = 0;
-	bool stored_check = false;
-	bool staged_check = false;
+	bool spectrum_ready = false;
+	bool fixed_enabled = false;
+	bool fixed_requested = false;
+	bool real_input = true;
+	bool bands_enabled = false;
+	int spectrogram_row = 0;
 	const cmplx *buf;
+	const DSP::ComplexQ15 *buf_q15;
+	int16_t history[2 * history_length];
 
 	static uint32_t argb(float a, float r, float g, float b) {
 		a = std::clamp<float>(a, 0, 1);
@@ -143,6 +342,11 @@ class Decoder : public DecoderInterface {
 		return argb(4 * v, t, 1 - std::abs(t), -t);
 	}
 
+	// Android bitmaps keep their pixels in RGBA byte order
+	static uint32_t abgr(uint32_t c) {
+		return (c & 0xff00ff00) | ((c >> 16) & 0xff) | ((c & 0xff) << 16);
+	}
+
 	static int bin(int carrier) {
 		return (carrier + symbol_length) % symbol_length;
 	}
@@ -177,31 +381,163 @@ class Decoder : public DecoderInterface {
 		return cons;
 	}
 
-	const cmplx *corSeq() {
-		CODE::MLS seq(cor_seq_poly);
-		for (int i = 0; i < symbol_length / 2; ++i)
-			freq[i] = 0;
-		for (int i = 0; i < cor_seq_len; ++i)
-			freq[(i + cor_seq_off / 2 + symbol_length / 2) % (symbol_length / 2)] = nrz(seq());
-		return freq;
+	static float resample_kernel(int n, int N, float cutoff) {
+		DSP::Kaiser<float> kaiser(2);
+		DSP::LowPass<float> lowpass(cutoff);
+		return resample_up * kaiser(n, N) * lowpass(n, N);
+	}
+
+	// passes zero to RATE/2 and rejects the negative frequencies, replacing the Hilbert filter
+	static cmplx analytic_kernel(int n, int N) {
+		float quarter = 1.f / (4 * resample_down);
+		float x = n - 0.5f * (N - 1);
+		return 2 * resample_kernel(n, N, quarter) * DSP::polar<float>(1, Const::TwoPi() * quarter * x);
+	}
+
+	static float complex_kernel(int n, int N) {
+		return resample_kernel(n, N, 1.f / (2 * resample_down));
 	}
 
-	cmplx analytic(float real) {
-		return hilbert(block_dc(real));
+	int analytic(cmplx *sample, float real) {
+		if (RATE == CAPTURE) {
+			*sample = hilbert(block_dc(real));
+			return 1;
+		}
+		return analytic_resampler(sample, block_dc(real));
+	}
+
+	int complex(cmplx *sample, cmplx value) {
+		if (RATE == CAPTURE) {
+			*sample = value;
+			return 1;
+		}
+		return complex_resampler(sample, value);
+	}
+
+	int convert(cmplx *sample, const int16_t *samples, int channel, int i) {
+		switch (channel) {
+			case 1:
+				return analytic(sample, samples[2 * i] / 32768.f);
+			case 2:
+				return analytic(sample, samples[2 * i + 1] / 32768.f);
+			case 3:
+				return analytic(sample, ((int) samples[2 * i] + (int) samples[2 * i + 1]) / 65536.f);
+			case 4:
+				return complex(sample, cmplx(samples[2 * i], samples[2 * i + 1]) / 32768.f);
+		}
+		return analytic(sample, samples[i] / 32768.f);
 	}
 
-	cmplx convert(const int16_t *samples, int channel, int i) {
+	// only real input at the modem rate and I/Q pairs stay in fixed-point
+	DSP::ComplexQ15 convert_q15(const int16_t *samples, int channel, int i) {
 		switch (channel) {
 			case 1:
-				return analytic(samples[2 * i] / 32768.f);
+				return hilbert_q15(block_dc_q15(samples[2 * i]));
 			case 2:
-				return analytic(samples[2 * i + 1] / 32768.f);
+				return hilbert_q15(block_dc_q15(samples[2 * i + 1]));
 			case 3:
-				return analytic(((int) samples[2 * i] + (int) samples[2 * i + 1]) / 65536.f);
+				return hilbert_q15(block_dc_q15(((int) samples[2 * i] + (int) samples[2 * i + 1]) / 2));
 			case 4:
-				return cmplx(samples[2 * i], samples[2 * i + 1]) / 32768.f;
+				return DSP::ComplexQ15(samples[2 * i], samples[2 * i + 1]);
 		}
-		return analytic(samples[i] / 32768.f);
+		return hilbert_q15(block_dc_q15(samples[i]));
+	}
+
+	// symbols get widened to floating-point only when they are handed to the FFT
+	cmplx sample(int i) const {
+		if (fixed_enabled)
+			return DSP::WidenQ15<cmplx>(buf_q15)[i];
+		return buf[i];
+	}
+
+	// sub-band correlators see their band mixed down to zero and delayed by their filter
+	void trigger(const Correlator &sync, float shift = 0, int delay = 0) {
+		stats.count(Metrics::TRIGGERS);
+		if (stored_count == candidate_count)
+			return;
+		float cfo_rad = sync.cfo_rad + shift;
+		if (cfo_rad >= Const::Pi())
+			cfo_rad -= Const::TwoPi();
+		// the search window is a little wider than the band, what is left gets sorted out here
+		if (cfo_rad < cfo_min || cfo_rad > cfo_max) {
+			stats.count(Metrics::OFF_BAND);
+			return;
+		}
+		stored[stored_count++] = {cfo_rad, sync.symbol_pos - delay + accumulated};
+	}
+
+	// the sub-bands split the passband of real signals from zero to RATE/2
+	static float band_center(int band) {
+		return (2 * band + 1) / (4.f * band_count);
+	}
+
+	void split(cmplx sample) {
+		for (int i = 0; i < band_count; ++i) {
+			Band &band = bands[i];
+			if (band.correlator(band.buffer(band.filter(sample))))
+				trigger(band.correlator, Const::TwoPi() * band_center(i), BandFilter::delay);
+		}
+	}
+
+	// drops the peaks the correlators were collecting from before the gap
+	void rearm() {
+		correlator.reset();
+		correlator_q15.reset();
+		for (Band &band : bands)
+			band.correlator.reset();
+	}
+
+	bool idle() const {
+		for (const Context &ctx : contexts)
+			if (ctx.busy())
+				return false;
+		return !stored_count && !staged_count;
+	}
+
+	/*
+	The symbols in flight are read from the buffer of the front end that
+	filled it, so we only switch between bursts. The buffer taking over
+	still holds what came in when it was last used, so we hand it what the
+	other one holds, through its correlator, which also brings the exact
+	sums of the fixed-point one in step. The peaks found on the way were
+	already found by the other correlator.
+	*/
+	void switch_front_end() {
+		fixed_enabled = fixed_requested;
+		if (fixed_enabled) {
+			const cmplx *samples = buffer();
+			for (int i = 0; i < buffer_length; ++i)
+				correlator_q15(buffer_q15(DSP::ComplexQ15(DSP::saturate_q15(std::nearbyint(32768 * samples[i].real())), DSP::saturate_q15(std::nearbyint(32768 * samples[i].imag())))));
+		} else {
+			DSP::WidenQ15<cmplx> samples(buffer_q15());
+			for (int i = 0; i < buffer_length; ++i)
+				correlator(buffer(samples[i]));
+		}
+	}
+
+	// the same preamble is usually found by more than one correlator
+	bool seen(float cfo_rad, int64_t clock) {
+		const float cfo_tolerance = 4 * Const::TwoPi() / symbol_length;
+		for (int i = 0; i < recent_size; ++i)
+			if (std::abs(clock - recent[i].clock) < guard_length && std::abs(cfo_rad - recent[i].cfo_rad) < cfo_tolerance)
+				return true;
+		recent[recent_next] = {cfo_rad, clock};
+		recent_next = (recent_next + 1) % recent_count;
+		recent_size = std::min(recent_size + 1, recent_count);
+		return false;
+	}
+
+	// a new burst takes a free context or the one busy for the longest time
+	Context &allocate() {
+		int limit = bands_enabled ? context_count : 1;
+		Context *oldest = contexts;
+		for (int i = 0; i < limit; ++i) {
+			if (!contexts[i].busy())
+				return contexts[i];
+			if (contexts[i].clock < oldest->clock)
+				oldest = contexts + i;
+		}
+		return *oldest;
 	}
 
 	void update_spectrum(uint32_t *pixels, uint32_t tint) {
@@ -210,15 +546,18 @@ class Decoder : public DecoderInterface {
 		auto pos = [this, img](int i) {
 			return (int) std::nearbyint((1 - power[i]) * (img.height - 1));
 		};
-		tint |= 0xff000000;
+		tint = abgr(tint | 0xff000000);
 		for (int i = 1, j = pos(0), k; i < img.width; ++i, j = k)
 			img.line(i - 1, j, i, k = pos(i), tint);
 	}
 
+	// the image holds every row twice, so rows [row, row + height) are always contiguous
 	void update_spectrogram(uint32_t *pixels) {
-		std::memmove(pixels + spectrogram_width, pixels, sizeof(uint32_t) * spectrogram_width * (spectrogram_height - 1));
+		spectrogram_row = (spectrogram_row + spectrogram_height - 1) % spectrogram_height;
+		uint32_t *first = pixels + spectrogram_width * spectrogram_row;
+		uint32_t *second = first + spectrogram_width * spectrogram_height;
 		for (int i = 0; i < spectrogram_width; ++i)
-			pixels[i] = rainbow(power[i]);
+			first[i] = second[i] = shared.palette[(int) std::nearbyint(255 * power[i])];
 	}
 
 	void compensate() {
@@ -251,17 +590,84 @@ class Decoder : public DecoderInterface {
 		return sp / np;
 	}
 
-	void demap() {
+	void demap(Context &ctx) {
 		float pre = precision();
+		ctx.precision_sum += DSP::decibel(pre);
+		stats.precision(DSP::decibel(pre));
 		for (int i = 0; i < pay_car_cnt; ++i)
-			mod_soft(code + mod_bits * (symbol_number * pay_car_cnt + i), cons[i], pre);
+			mod_soft(ctx.code + mod_bits * ((ctx.symbol_number % symbol_count) * pay_car_cnt + i), cons[i], pre);
+	}
+
+	// soft bits of zero tell the polar decoder that nothing is known about them
+	void erase(Context &ctx) {
+		++ctx.erased;
+		for (int i = 0; i < mod_bits * pay_car_cnt; ++i)
+			ctx.code[mod_bits * (ctx.symbol_number % symbol_count) * pay_car_cnt + i] = 0;
+	}
+
+	/*
+	Symbols the snapshots still hold from before the gap stay where they
+	are, symbols starting after it are read from where it moved them to.
+	The ones the gap ran through get pieced together from both sides of it.
+	Symbols the gap moved out of the buffer by the time they are due get
+	read a snapshot early, together with the ones before them.
+	The next symbol to read starts "first" samples after the gap began.
+	*/
+	void realign(Context &ctx, int first) {
+		int lag = 0, splice = 0;
+		for (int start = first; start < gap_length; start += extended_length) {
+			if (!splice && start + symbol_length <= 0)
+				++lag;
+			else
+				++splice;
+		}
+		int owed = std::max(0, gap_length - ctx.symbol_position + extended_length - 1) / extended_length;
+		// a gap arriving before the previous one is done with erases all of what is left in between
+		if (ctx.lag || ctx.erase || ctx.splice || ctx.owed) {
+			ctx.erase = std::max(ctx.lag + ctx.erase + ctx.splice, ctx.owed + lag + splice);
+			ctx.lag = 0;
+			ctx.splice = 0;
+		} else {
+			ctx.lag = lag;
+			ctx.splice = splice;
+			ctx.start = first + lag * extended_length;
+		}
+		ctx.ahead = gap_length;
+		ctx.owed += owed;
+		ctx.symbol_position += owed * extended_length - gap_length;
+	}
+
+	/*
+	Reads the symbol from both sides of the gap, with zeros in between.
+	When the gap took from its end, it gets read up to a guard interval
+	earlier, undoing the turn that gives its carriers afterwards.
+	The position is where it would start if there was no gap.
+	Returns the number of samples missing from the symbol.
+	*/
+	int splice(Context &ctx, int position) {
+		int early = ctx.start < 0 ? std::clamp(ctx.start + symbol_length, 0, guard_length) : 0;
+		int missing = 0;
+		for (int i = 0; i < extended_length; ++i) {
+			int time = ctx.start - early + i;
+			int index = position - early + i - (time < 0 ? 0 : gap_length);
+			cmplx value = 0;
+			if ((time < 0 || time >= gap_length) && index >= 0)
+				value = sample(index);
+			else if (i < symbol_length)
+				++missing;
+			temp[i] = value * ctx.osc();
+		}
+		fwd(freq, temp);
+		for (int i = 0; early && i < pay_car_cnt; ++i)
+			freq[bin(i + pay_car_off)] *= DSP::polar<float>(1, (ctx.cfo_rad + Const::TwoPi() * (i + pay_car_off) / symbol_length) * early);
+		return missing;
 	}
 
 	int preamble() {
 		DSP::Phasor<cmplx> nco;
 		nco.omega(-staged_cfo_rad);
 		for (int i = 0; i < symbol_length; ++i)
-			temp[i] = buf[staged_position + i] * nco();
+			temp[i] = sample(staged_position + i) * nco();
 		fwd(freq, temp);
 		CODE::MLS seq(pre_seq_poly);
 		for (int i = 0; i < pre_seq_len; ++i)
@@ -281,7 +687,7 @@ class Decoder : public DecoderInterface {
 			return STATUS_FAIL;
 		staged_mode = md & 255;
 		staged_call = md >> 8;
-		if (staged_mode && (staged_mode < 14 || staged_mode > 16))
+		if (staged_mode && (staged_mode < 14 || staged_mode > 19))
 			return STATUS_NOPE;
 		if (staged_call == 0 || staged_call >= 129961739795077L) {
 			staged_call = 0;
@@ -293,33 +699,87 @@ class Decoder : public DecoderInterface {
 	}
 
 public:
-	Decoder() : correlator(corSeq()), crc(0xA8F4), lowpass(1, symbol_length), window(&hann, &lowpass) {
-		CODE::BoseChaudhuriHocquenghemGenerator<255, 71>::matrix(generator, true, {
-			0b100011101, 0b101110111, 0b111110011, 0b101101001,
-			0b110111101, 0b111100111, 0b100101011, 0b111010111,
-			0b000010011, 0b101100101, 0b110001011, 0b101100011,
-			0b100011011, 0b100111111, 0b110001101, 0b100101101,
-			0b101011111, 0b111111001, 0b111000011, 0b100111001,
-			0b110101001, 0b000011111, 0b110000111, 0b110110001});
-		block_dc.samples(filter_length);
-		osc.omega(-2000, RATE);
+	Decoder() : shared(tables()), generator(preamble_generator()), correlator(shared.kernel), analytic_resampler(shared.analytic), complex_resampler(shared.complex), crc(0xA8F4) {
+		block_dc.samples((filter_length * CAPTURE) / RATE);
+		block_dc_q15.samples(filter_length);
+		for (int i = 0; i < band_count; ++i)
+			bands[i].filter.setup(band_center(i), 1.f / (2 * band_count));
 	}
 
 	int rate() final {
-		return RATE;
+		return CAPTURE;
+	}
+
+	static int16_t quantize(float value) {
+		return std::clamp<float>(std::nearbyint(16384 * value), -32768, 32767);
+	}
+
+	// a frozen history waits for dump(), but not longer than it would take to fill it again
+	bool frozen() {
+		if (!history_hold)
+			return false;
+		--history_hold;
+		return true;
+	}
+
+	void advance() {
+		if (++history_position == history_length)
+			history_position = 0;
+		if (history_delay && !--history_delay)
+			history_hold = history_length;
+	}
+
+	void record(cmplx sample) {
+		if (frozen())
+			return;
+		history[2 * history_position] = quantize(sample.real());
+		history[2 * history_position + 1] = quantize(sample.imag());
+		advance();
 	}
 
-	void staged(float *cfo, int32_t *mode, uint8_t *call) final {
-		*cfo = staged_cfo_rad * (RATE / Const::TwoPi());
-		*mode = staged_mode;
-		base37(call, staged_call, 9);
+	void record(DSP::ComplexQ15 sample) {
+		if (frozen())
+			return;
+		history[2 * history_position] = sample.real() / 2;
+		history[2 * history_position + 1] = sample.imag() / 2;
+		advance();
 	}
 
-	int fetch(uint8_t *payload) final {
+	// the history freezes history_after samples after the event, unless an earlier one is still on its way
+	void arm(int trigger) {
+		if (history_enabled && (history_triggers & trigger) && !history_delay && !history_hold)
+			history_delay = history_after;
+	}
+
+	// the oldest event gets dropped if nobody polls for a while
+	DecoderEvent *push(int status, int mode, float cfo_rad, uint64_t call, int64_t clock) {
+		if (event_size == event_count) {
+			event_head = (event_head + 1) % event_count;
+			--event_size;
+		}
+		DecoderEvent *event = events + (event_head + event_size++) % event_count;
+		event->status = status;
+		event->mode = mode;
+		event->result = 0;
+		event->cfo = cfo_rad * (RATE / Const::TwoPi());
+		event->position = sample_clock - clock;
+		event->precision = 0;
+		event->segment = 0;
+		event->segments = 1;
+		base37(event->call, call, 9);
+		for (int i = 9; i < 12; ++i)
+			event->call[i] = 0;
+		return event;
+	}
+
+	int fetch(const Context &ctx, int segment, uint8_t *payload) {
 		const uint32_t *frozen_bits;
 		int data_bits;
-		switch (operation_mode) {
+		switch (ctx.mode) {
 			case 14:
+			case 17:
+			case 18:
+			case 19:
 				data_bits = 1360;
 				frozen_bits = frozen_2048_1392;
 				break;
@@ -334,8 +794,26 @@ public:
 			default:
 				return -1;
 		}
-		int result = polar(payload, code, frozen_bits, data_bits);
+		/*
+		Erased symbols take out whole quarters of the codeword, which costs
+		the polar code about twice their size in redundancy. Beyond that,
+		the polar decoder could only guess.
+		*/
+		if (2 * ctx.erased * mod_bits * pay_car_cnt > code_len - (data_bits + 32)) {
+			stats.count(Metrics::ERASED);
+			return -1;
+		}
+		auto begin = stats.start();
+		int result = polar(payload, ctx.code, frozen_bits, data_bits);
+		stats.stop(Metrics::POLAR, begin);
+		if (result < 0)
+			stats.count(Metrics::POLAR_FAIL);
+		else
+			stats.count(Metrics::FLIPS, result);
+		// one scrambler runs over all segments
 		CODE::Xorshift32 scrambler;
+		for (int i = 0; i < segment * (data_bits / 8); ++i)
+			scrambler();
 		for (int i = 0; i < data_bits / 8; ++i)
 			payload[i] ^= scrambler();
 		for (int i = data_bits / 8; i < 170; ++i)
@@ -344,71 +822,304 @@ public:
 	}
 
 	bool feed(const int16_t *audio_buffer, int sample_count, int channel_select) final {
-		assert(sample_count <= extended_length);
+		assert(sample_count <= (extended_length * CAPTURE) / RATE);
+		auto begin = stats.start();
+		real_input = channel_select != 4;
+		if (fixed_enabled != fixed_requested && idle())
+			switch_front_end();
 		for (int i = 0; i < sample_count; ++i) {
-			if (correlator(buffer(convert(audio_buffer, channel_select, i)))) {
-				stored_cfo_rad = correlator.cfo_rad;
-				stored_position = correlator.symbol_pos + accumulated;
-				stored_check = true;
+			if (fixed_enabled) {
+				DSP::ComplexQ15 sample = convert_q15(audio_buffer, channel_select, i);
+				++sample_clock;
+				if (history_enabled)
+					record(sample);
+				const DSP::ComplexQ15 *samples = buffer_q15(sample);
+				if (correlator_q15(samples) && correlator.synchronize(DSP::WidenQ15<cmplx>(samples), correlator_q15.phase, correlator_q15.index))
+					trigger(correlator);
+				// the sub-bands stay in floating-point
+				if (bands_enabled)
+					split(cmplx(sample.real(), sample.imag()) / 32768.f);
+			} else {
+				cmplx sample;
+				if (!convert(&sample, audio_buffer, channel_select, i))
+					continue;
+				++sample_clock;
+				if (history_enabled)
+					record(sample);
+				if (correlator(buffer(sample)))
+					trigger(correlator);
+				if (bands_enabled)
+					split(sample);
 			}
-			if (++accumulated == extended_length)
+			if (rearm_delay && !--rearm_delay)
+				rearm();
+			if (++accumulated == extended_length) {
 				buf = buffer();
+				buf_q15 = buffer_q15();
+				buffer_clock = sample_clock;
+			}
 		}
 		if (accumulated >= extended_length) {
 			accumulated -= extended_length;
-			if (stored_check) {
-				staged_cfo_rad = stored_cfo_rad;
-				staged_position = stored_position;
-				staged_check = true;
-				stored_check = false;
+			if (stored_count) {
+				std::copy(stored, stored + stored_count, staged);
+				staged_count = stored_count;
+				stored_count = 0;
 			}
+			spectrum_ready = true;
+			stats.stop(Metrics::FEED, begin);
 			return true;
 		}
+		stats.stop(Metrics::FEED, begin);
 		return false;
 	}
 
 	int process() final {
 		int status = STATUS_OKAY;
-		if (staged_check) {
-			staged_check = false;
+		auto begin = stats.start();
+		for (int k = 0; k < staged_count; ++k) {
+			staged_cfo_rad = staged[k].cfo_rad;
+			staged_position = staged[k].position;
+			int64_t staged_clock = buffer_clock - buffer_length + staged_position;
+			if (seen(staged_cfo_rad, staged_clock))
+				continue;
+			auto preamble_begin = stats.start();
 			status = preamble();
+			stats.stop(Metrics::PREAMBLE, preamble_begin);
+			switch (status) {
+				case STATUS_FAIL:
+					stats.count(Metrics::PREAMBLE_FAIL);
+					break;
+				case STATUS_NOPE:
+					stats.count(Metrics::NOPE);
+					break;
+				case STATUS_PING:
+					stats.count(Metrics::PING);
+					break;
+			}
+			Context *created = nullptr;
 			if (status == STATUS_OKAY) {
-				operation_mode = staged_mode;
-				osc.omega(-staged_cfo_rad);
-				symbol_position = staged_position;
-				symbol_number = -1;
+				Context &ctx = allocate();
+				created = &ctx;
+				ctx.mode = staged_mode;
+				ctx.segments = staged_mode > 16 ? 1 << (staged_mode - 15) : 1;
+				ctx.cfo_rad = staged_cfo_rad;
+				ctx.call = staged_call;
+				ctx.clock = staged_clock;
+				ctx.precision_sum = 0;
+				ctx.lag = 0;
+				ctx.erase = 0;
+				ctx.splice = 0;
+				ctx.owed = 0;
+				ctx.orphan = false;
+				ctx.erased = 0;
+				ctx.osc.omega(-staged_cfo_rad);
+				ctx.symbol_position = staged_position;
+				ctx.symbol_number = -1;
 				status = STATUS_SYNC;
 			}
+			push(status, staged_mode, staged_cfo_rad, status == STATUS_FAIL ? 0 : staged_call, staged_clock);
+			if (status == STATUS_FAIL)
+				arm(DUMP_FAIL);
+			else if (status == STATUS_NOPE)
+				arm(DUMP_NOPE);
+			// the preamble got found after the gap, but was sent before it
+			int first = staged_position - buffer_length + (buffer_clock - gap_clock);
+			if (created && first < 0)
+				realign(*created, first);
 		}
-		if (symbol_number < symbol_count) {
-			for (int i = 0; i < extended_length; ++i)
-				temp[i] = buf[symbol_position + i] * osc();
-			fwd(freq, temp);
-			if (symbol_number >= 0) {
+		staged_count = 0;
+		for (Context &ctx : contexts) {
+			int owed = ctx.owed;
+			ctx.owed = 0;
+			for (; owed >= 0 && ctx.busy(); --owed) {
+				int back = owed * extended_length;
+				bool lost = false;
+				if (ctx.lag) {
+					for (int i = 0; i < extended_length; ++i)
+						temp[i] = sample(ctx.symbol_position + ctx.ahead - back + i) * ctx.osc();
+					fwd(freq, temp);
+					--ctx.lag;
+				} else if (ctx.erase) {
+					for (int i = 0; i < extended_length; ++i)
+						ctx.osc();
+					lost = true;
+					--ctx.erase;
+				} else if (ctx.splice) {
+					lost = splice(ctx, ctx.symbol_position + ctx.ahead - back) >= symbol_length;
+					ctx.start += extended_length;
+					--ctx.splice;
+				} else {
+					for (int i = 0; i < extended_length; ++i)
+						temp[i] = sample(ctx.symbol_position - back + i) * ctx.osc();
+					fwd(freq, temp);
+				}
+				// the differential demodulation needs a good predecessor
+				if (ctx.symbol_number >= 0 && (lost || ctx.orphan)) {
+					erase(ctx);
+				} else if (ctx.symbol_number >= 0) {
+					for (int i = 0; i < pay_car_cnt; ++i)
+						cons[i] = demod_or_erase(freq[bin(i + pay_car_off)], ctx.prev[i]);
+					auto compensate_begin = stats.start();
+					compensate();
+					stats.stop(Metrics::COMPENSATE, compensate_begin);
+					demap(ctx);
+				}
 				for (int i = 0; i < pay_car_cnt; ++i)
-					cons[i] = demod_or_erase(freq[bin(i + pay_car_off)], prev[i]);
-				compensate();
-				demap();
+					ctx.prev[i] = freq[bin(i + pay_car_off)];
+				ctx.orphan = lost;
+				if (++ctx.symbol_number > 0 && ctx.symbol_number % symbol_count == 0) {
+					int segment = ctx.symbol_number / symbol_count - 1;
+					status = STATUS_DONE;
+					if (segment == ctx.segments - 1)
+						stats.count(Metrics::DONE);
+					DecoderEvent *event = push(status, ctx.mode, ctx.cfo_rad, ctx.call, ctx.clock);
+					event->precision = ctx.precision_sum / symbol_count;
+					event->result = fetch(ctx, segment, event->payload);
+					if (event->result < 0)
+						arm(DUMP_DECODE);
+					event->segment = segment;
+					event->segments = ctx.segments;
+					for (int i = 170; i < 172; ++i)
+						event->payload[i] = 0;
+					ctx.precision_sum = 0;
+					ctx.erased = 0;
+					// one event per context and call, whatever is still owed waits for the next one
+					ctx.owed = owed;
+					break;
+				}
 			}
-			if (++symbol_number == symbol_count)
-				status = STATUS_DONE;
-			for (int i = 0; i < pay_car_cnt; ++i)
-				prev[i] = freq[bin(i + pay_car_off)];
 		}
+		stats.stop(Metrics::PROCESS, begin);
 		return status;
 	}
 
-	void spectrum(uint32_t *spectrum_pixels, uint32_t *spectrogram_pixels, int spectrum_tint) final {
+	/*
+	Frames the capture lost never reach feed, so whatever comes after the
+	gap sits closer to the newest sample than the bursts in flight expect.
+	*/
+	void lost(int frames) final {
+		stats.count(Metrics::DROPPED, frames);
+		int gap = (int64_t(frames) * RATE) / CAPTURE;
+		if (gap <= 0)
+			return;
+		sample_clock += gap;
+		gap_clock = sample_clock;
+		gap_length = gap;
+		// a peak still building up when the gap reaches the search windows would mix both sides of it
+		rearm_delay = buffer_length - search_position - symbol_length;
+		for (Context &ctx : contexts)
+			if (ctx.busy())
+				realign(ctx, ctx.symbol_position - buffer_length + extended_length - accumulated);
+	}
+
+	int poll(DecoderEvent *output, int max_count) final {
+		int count = std::min(max_count, event_size);
+		for (int i = 0; i < count; ++i) {
+			output[i] = events[event_head];
+			event_head = (event_head + 1) % event_count;
+		}
+		event_size -= count;
+		return count;
+	}
+
+	Metrics *metrics() final {
+		return &stats;
+	}
+
+	/*
+	Keeps the last history_length analytic samples at the modem rate while
+	any of the DUMP_* triggers is set. The history freezes sample_count
+	samples after the triggering event got pushed, no matter how late the
+	event gets polled, so its position plus sample_count is exactly the
+	distance from the preamble to the end of the dump.
+	*/
+	void blackbox(int triggers, int sample_count) final {
+		bool enable = triggers != 0;
+		if (enable && !history_enabled) {
+			for (int i = 0; i < 2 * history_length; ++i)
+				history[i] = 0;
+			history_position = 0;
+			history_delay = 0;
+			history_hold = 0;
+		}
+		history_enabled = enable;
+		history_triggers = triggers;
+		history_after = std::clamp(sample_count, 1, history_length);
+	}
+
+	// the fixed-point front end needs no resampler, so other capture rates keep using floating-point
+	void fixed_point(bool enable) final {
+		fixed_requested = enable && RATE == CAPTURE;
+	}
+
+	// decodes bursts on different carriers at the same time
+	void multi_carrier(bool enable) final {
+		bands_enabled = enable;
+	}
+
+	/*
+	Only bursts with their carrier between min and max Hz get a preamble
+	decoded. The correlators only look for frequency offsets inside that
+	range, and triggers outside of it never make it to the preamble.
+	*/
+	void carrier_range(int min, int max) final {
+		cfo_min = std::max(min, -RATE / 2) * (Const::TwoPi() / RATE);
+		cfo_max = std::min(max, RATE / 2) * (Const::TwoPi() / RATE);
+		correlator.search(cfo_min, cfo_max);
+		for (int i = 0; i < band_count; ++i)
+			bands[i].correlator.search(cfo_min - Const::TwoPi() * band_center(i), cfo_max - Const::TwoPi() * band_center(i));
+	}
+
+	// copies the frozen history as interleaved I/Q pairs, oldest first, zero while still recording and negative if there is nothing to dump
+	int dump(int16_t *output, int max_count) final {
+		if (!history_enabled || max_count < history_length)
+			return -1;
+		if (history_delay)
+			return 0;
+		if (!history_hold)
+			return -1;
+		history_hold = 0;
+		int tail = history_length - history_position;
+		std::copy(history + 2 * history_position, history + 2 * history_length, output);
+		std::copy(history, history + 2 * history_position, output + 2 * tail);
+		return history_length;
+	}
+
+	// lets the history move on again when nobody is going to dump it
+	void discard() final {
+		history_delay = 0;
+		history_hold = 0;
+	}
+
+	// returns the newest spectrogram row or -1 if nothing new arrived since the last call
+	int spectrum(uint32_t *spectrum_pixels, uint32_t *spectrogram_pixels, int spectrum_tint) final {
+		if (!spectrum_ready)
+			return -1;
+		spectrum_ready = false;
 		for (int j = 0; j < 2; ++j) {
-			for (int i = 0; i < stft_length; ++i)
-				temp[i] = 0;
-			for (int i = 0; i < window_length; ++i)
-				temp[i % stft_length] += window[i] * buf[buffer_length - window_length + stft_length * (j - 1) + i];
-			stft(freq, temp);
+			int begin = buffer_length - window_length + stft_length * (j - 1);
+			float gain = 1;
+			if (real_input) {
+				for (int i = 0; i < stft_length; ++i)
+					stft_real[i] = 0;
+				for (int i = 0; i < window_length; ++i)
+					stft_real[i % stft_length] += shared.window[i] * sample(begin + i).real();
+				real_stft(freq, stft_real);
+				// the real part only carries half of the analytic signal
+				gain = 4;
+			} else {
+				for (int i = 0; i < stft_length; ++i)
+					temp[i] = 0;
+				for (int i = 0; i < window_length; ++i)
+					temp[i % stft_length] += shared.window[i] * sample(begin + i);
+				stft(freq, temp);
+			}
 			for (int i = 0; i < spectrum_width; ++i)
-				power[i] = std::clamp<float>((DSP::decibel(norm(freq[i])) - dB_min) / (dB_max - dB_min), 0, 1);
+				power[i] = std::clamp<float>((DSP::decibel(gain * norm(freq[i])) - dB_min) / (dB_max - dB_min), 0, 1);
 			update_spectrogram(spectrogram_pixels);
 		}
 		update_spectrum(spectrum_pixels, spectrum_tint);
+		return spectrogram_row;
 	}
 };
@@ -7,11 +7,16 @@ Copyright 2022 Ahmet Inan <inan@aicodix.de>
 #pragma once
 
 #include <cmath>
+#include <numeric>
 #include <iostream>
 #include "bose_chaudhuri_hocquenghem_encoder.hh"
 #include "base37_bitmap.hh"
+#include "resampler.hh"
+#include "lru_cache.hh"
 #include "xorshift.hh"
 #include "complex.hh"
+#include "window.hh"
+#include "filter.hh"
 #include "bitman.hh"
 #include "polar.hh"
 #include "utils.hh"
@@ -21,19 +26,34 @@ Copyright 2022 Ahmet Inan <inan@aicodix.de>
 #include "mls.hh"
 #include "crc.hh"
 #include "psk.hh"
+#include "decibel.hh"
 
 struct EncoderInterface {
-	virtual void configure(const uint8_t *, const int8_t *, int, int, bool) = 0;
+	// longest payload in bytes, split into segments of 170 bytes beyond that
+	static const int max_payload = 16 * 170;
+
+	virtual void configure(const uint8_t *, int, const int8_t *, int, int, bool) = 0;
 
 	virtual bool produce(int16_t *, int) = 0;
 
+	virtual int length() = 0;
+
+	virtual int render(int16_t *, int) = 0;
+
+	virtual int period() = 0;
+
+	virtual void papr_effort(int) = 0;
+
+	virtual float papr() = 0;
+
 	virtual int rate() = 0;
 
 	virtual ~EncoderInterface() = default;
 };
 
-template<int RATE>
+template<int RATE, int PLAYBACK = RATE>
 class Encoder : public EncoderInterface {
+	static_assert(PLAYBACK >= RATE, "resampler only interpolates");
 	typedef DSP::Complex<float> cmplx;
 	typedef DSP::Const<float> Const;
 	typedef int8_t code_type;
@@ -45,6 +65,7 @@ class Encoder : public EncoderInterface {
 	static const int guard_length = symbol_length / 8;
 	static const int extended_length = symbol_length + guard_length;
 	static const int max_bits = 1360;
+	static const int max_segments = max_payload / (max_bits / 8);
 	static const int cor_seq_len = 127;
 	static const int cor_seq_off = 1 - cor_seq_len;
 	static const int cor_seq_poly = 0b10001001;
@@ -55,22 +76,56 @@ class Encoder : public EncoderInterface {
 	static const int pay_car_off = -pay_car_cnt / 2;
 	static const int fancy_off = -(8 * 9 * 3) / 2;
 	static const int noise_poly = 0b100101010001;
+	static const int output_length = (extended_length * PLAYBACK) / RATE;
+	static const int resample_up = PLAYBACK / std::gcd(RATE, PLAYBACK);
+	static const int resample_down = RATE / std::gcd(RATE, PLAYBACK);
+	static const int resample_taps = RATE == PLAYBACK ? 1 : 81;
+	typedef DSP::Resampler<cmplx, float, resample_up, resample_down, resample_taps> Interpolator;
+	static const int cache_size = 16;
+	static const int max_effort = 8;
+	enum { SYNC_SYMBOL, PREAMBLE_SYMBOL, FANCY_SYMBOL };
+	struct SymbolKey {
+		uint64_t meta;
+		int kind;
+		int offset;
+		bool real;
+
+		bool operator==(const SymbolKey &other) const {
+			return meta == other.meta && kind == other.kind && offset == other.offset && real == other.real;
+		}
+	};
+	struct SymbolValue {
+		cmplx time[symbol_length];
+		cmplx carriers[pay_car_cnt];
+	};
 	DSP::FastFourierTransform<symbol_length, cmplx, 1> bwd;
+	DSP::HalfComplexToRealTransform<symbol_length, cmplx> real_bwd;
 	CODE::CRC<uint16_t> crc;
 	CODE::BoseChaudhuriHocquenghemEncoder<255, 71> bch;
 	CODE::MLS noise_seq;
 	ImprovePAPR<cmplx, symbol_length, (32000 + RATE / 2) / RATE> improve_papr;
 	PolarEncoder<code_type> polar;
+	Interpolator interpolator;
+	LeastRecentlyUsed<SymbolKey, SymbolValue, cache_size> symbol_cache;
 	cmplx temp[extended_length], freq[symbol_length], prev[pay_car_cnt], guard[guard_length];
+	cmplx half[symbol_length / 2 + 1];
+	float real[symbol_length];
 	uint8_t mesg[max_bits / 8], call[9];
-	code_type code[code_len];
+	code_type code[code_len * max_segments];
 	uint64_t meta_data;
 	int operation_mode = 0;
+	int segments = 1;
 	int carrier_offset = 0;
+	bool positive = false;
+	bool real_output = false;
 	int symbol_number = symbol_count;
 	int count_down = 0;
 	int fancy_line = 0;
 	int noise_count = 0;
+	int effort = 1;
+	float peak_power = 0;
+	float power_sum = 0;
+	int power_count = 0;
 
 	static uint8_t base37_map(int8_t c) {
 		if (c >= '0' && c <= '9')
@@ -101,7 +156,31 @@ class Encoder : public EncoderInterface {
 		return (carrier + carrier_offset + symbol_length) % symbol_length;
 	}
 
+	bool recall(const SymbolKey &key) {
+		const SymbolValue *value = symbol_cache.find(key);
+		if (!value)
+			return false;
+		for (int i = 0; i < symbol_length; ++i)
+			temp[i] = value->time[i];
+		if (key.kind == PREAMBLE_SYMBOL)
+			for (int i = 0; i < pay_car_cnt; ++i)
+				prev[i] = value->carriers[i];
+		return true;
+	}
+
+	void remember(const SymbolKey &key) {
+		SymbolValue *value = symbol_cache.insert(key);
+		for (int i = 0; i < symbol_length; ++i)
+			value->time[i] = temp[i];
+		if (key.kind == PREAMBLE_SYMBOL)
+			for (int i = 0; i < pay_car_cnt; ++i)
+				value->carriers[i] = prev[i];
+	}
+
 	void schmidl_cox() {
+		SymbolKey key = {0, SYNC_SYMBOL, carrier_offset, real_output};
+		if (recall(key))
+			return;
 		CODE::MLS seq(cor_seq_poly);
 		float factor = std::sqrt(float(2 * symbol_length) / cor_seq_len);
 		for (int i = 0; i < symbol_length; ++i)
@@ -112,9 +191,13 @@ class Encoder : public EncoderInterface {
 		for (int i = 0; i < cor_seq_len; ++i)
 			freq[bin(2 * i + cor_seq_off)] *= freq[bin(2 * (i - 1) + cor_seq_off)];
 		transform();
+		remember(key);
 	}
 
 	void preamble() {
+		SymbolKey key = {meta_data, PREAMBLE_SYMBOL, carrier_offset, real_output};
+		if (recall(key))
+			return;
 		uint8_t data[9] = {0}, parity[23] = {0};
 		for (int i = 0; i < 55; ++i)
 			CODE::set_be_bit(data, i, (meta_data >> i) & 1);
@@ -139,9 +222,15 @@ class Encoder : public EncoderInterface {
 		for (int i = 0; i < pay_car_cnt; ++i)
 			prev[i] = freq[bin(i + pay_car_off)];
 		transform();
+		remember(key);
 	}
 
 	void fancy_symbol() {
+		SymbolKey key = {meta_data >> 8, FANCY_SYMBOL + fancy_line, carrier_offset, real_output};
+		if (recall(key))
+			return;
+		// seeded per line, so the rendered symbol only depends on the key
+		CODE::MLS seq(noise_poly, fancy_line + 1);
 		int active_carriers = 1;
 		for (int j = 0; j < 9; ++j)
 			for (int i = 0; i < 8; ++i)
@@ -152,8 +241,9 @@ class Encoder : public EncoderInterface {
 		for (int j = 0; j < 9; ++j)
 			for (int i = 0; i < 8; ++i)
 				if (base37_bitmap[call[j] + 37 * fancy_line] & (1 << (7 - i)))
-					freq[bin((8 * j + i) * 3 + fancy_off)] = factor * nrz(noise_seq());
+					freq[bin((8 * j + i) * 3 + fancy_off)] = factor * nrz(seq());
 		transform();
+		remember(key);
 	}
 
 	void noise_symbol() {
@@ -178,11 +268,60 @@ class Encoder : public EncoderInterface {
 			temp[i] = 0;
 	}
 
+	static float resample_kernel(int n, int N) {
+		DSP::Kaiser<float> kaiser(2);
+		DSP::LowPass<float> lowpass(1.f / (2 * resample_up));
+		return resample_up * kaiser(n, N) * lowpass(n, N);
+	}
+
+	/*
+	A single pass clipping at the average power of the critically sampled
+	symbol is what we always did. More iterations only pay off when clipping
+	harder, as they keep the peaks from growing back after the filtering.
+	The clipping takes power away, the deeper the more. Scaling the symbol
+	back up by the limit puts its peaks where a single pass leaves them, so
+	a lower PAPR turns into more average power instead of less.
+	*/
 	void transform() {
-		improve_papr(freq);
-		bwd(temp, freq);
+		float limit = effort > 1 ? 0.6f : 1.f;
+		float scale = 1 / (limit * std::sqrt(float(8 * symbol_length)));
+		improve_papr(freq, effort, limit);
+		if (real_output) {
+			real_transform(scale);
+		} else {
+			bwd(temp, freq);
+			for (int i = 0; i < symbol_length; ++i)
+				temp[i] *= scale;
+		}
+		if (!effort)
+			fit();
+	}
+
+	// without any clipping nothing keeps the peaks in range, so a symbol that would get clamped is turned down as a whole
+	void fit() {
+		float peak = 0;
+		for (int i = 0; i < symbol_length; ++i)
+			peak = std::max(peak, std::max(std::abs(temp[i].real()), std::abs(temp[i].imag())));
+		if (peak <= 1)
+			return;
+		for (int i = 0; i < symbol_length; ++i)
+			temp[i] /= peak;
+	}
+
+	/*
+	The real part of the complex symbol, computed from the Hermitian half
+	of its spectrum. As all carriers sit in the positive half, that is just
+	half of each carrier. Only this last inverse transform gets cheaper:
+	the clipping in improve_papr needs the magnitude of the complex symbol,
+	so its oversampled transforms stay complex for real output as well.
+	*/
+	void real_transform(float scale) {
+		for (int i = 0; i < symbol_length / 2; ++i)
+			half[i] = 0.5f * freq[i];
+		half[symbol_length / 2] = 0;
+		real_bwd(real, half);
 		for (int i = 0; i < symbol_length; ++i)
-			temp[i] /= std::sqrt(float(8 * symbol_length));
+			temp[i] = scale * real[i];
 	}
 
 	void next_sample(int16_t *samples, cmplx signal, int channel, int i) {
@@ -204,21 +343,60 @@ class Encoder : public EncoderInterface {
 		}
 	}
 
+	// only what ends up on the selected channels at the playback rate counts
+	void measure(cmplx signal, int channel) {
+		float power = channel == 4 ? norm(signal) : signal.real() * signal.real();
+		peak_power = std::max(peak_power, power);
+		power_sum += power;
+		++power_count;
+	}
+
+	int next_output(int16_t *samples, cmplx signal, int channel, int i, bool measured) {
+		if (RATE == PLAYBACK) {
+			if (measured)
+				measure(signal, channel);
+			next_sample(samples, signal, channel, i);
+			return i + 1;
+		}
+		cmplx tmp[Interpolator::max_output];
+		int count = interpolator(tmp, signal);
+		for (int j = 0; j < count; ++j) {
+			if (measured)
+				measure(tmp[j], channel);
+			next_sample(samples, tmp[j], channel, i + j);
+		}
+		return i + count;
+	}
+
+	// shared by all encoders of the same rates
+	static const typename Interpolator::coeffs_type &interpolator_coeffs() {
+		static const typename Interpolator::coeffs_type coeffs(resample_kernel);
+		return coeffs;
+	}
+
 public:
-	Encoder() : noise_seq(noise_poly), crc(0xA8F4), bch({
+	Encoder() : crc(0xA8F4), bch({
 		0b100011101, 0b101110111, 0b111110011, 0b101101001,
 		0b110111101, 0b111100111, 0b100101011, 0b111010111,
 		0b000010011, 0b101100101, 0b110001011, 0b101100011,
 		0b100011011, 0b100111111, 0b110001101, 0b100101101,
 		0b101011111, 0b111111001, 0b111000011, 0b100111001,
-		0b110101001, 0b000011111, 0b110000111, 0b110110001}) {}
+		0b110101001, 0b000011111, 0b110000111, 0b110110001}), noise_seq(noise_poly), interpolator(interpolator_coeffs()) {}
 
 	int rate() final {
-		return RATE;
+		return PLAYBACK;
 	}
 
+	// frames written by every call to produce
+	int period() final {
+		return output_length;
+	}
+
+	// the I/Q output of channel 4 needs the complex symbols
 	bool produce(int16_t *audio_buffer, int channel_select) final {
+		real_output = positive && channel_select != 4;
 		bool data_symbol = false;
+		bool measured = true;
 		switch (count_down) {
 			case 5:
 				if (noise_count) {
@@ -242,7 +420,7 @@ public:
 			case 2:
 				payload_symbol();
 				data_symbol = true;
-				if (++symbol_number == symbol_count)
+				if (++symbol_number == symbol_count * segments)
 					--count_down;
 				break;
 			case 1:
@@ -252,13 +430,15 @@ public:
 					break;
 				}
 				silence();
+				measured = false;
 				--count_down;
 				break;
 			default:
-				for (int i = 0; i < extended_length; ++i)
+				for (int i = 0; i < output_length; ++i)
 					next_sample(audio_buffer, 0, channel_select, i);
 				return false;
 		}
+		int k = 0;
 		for (int i = 0; i < guard_length; ++i) {
 			float x = i / float(guard_length - 1);
 			float ratio(0.5);
@@ -266,28 +446,86 @@ public:
 				x = std::min(x, ratio) / ratio;
 			float y = 0.5f * (1 - std::cos(DSP::Const<float>::Pi() * x));
 			cmplx sum = DSP::lerp(guard[i], temp[i + symbol_length - guard_length], y);
-			next_sample(audio_buffer, sum, channel_select, i);
+			k = next_output(audio_buffer, sum, channel_select, k, measured);
 		}
 		for (int i = 0; i < guard_length; ++i)
 			guard[i] = temp[i];
 		for (int i = 0; i < symbol_length; ++i)
-			next_sample(audio_buffer, temp[i], channel_select, i + guard_length);
+			k = next_output(audio_buffer, temp[i], channel_select, k, measured);
 		return true;
 	}
 
-	void configure(const uint8_t *payload, const int8_t *call_sign, int carrier_frequency, int noise_symbols, bool fancy_header) final {
-		int len = 0;
-		while (len <= 128 && payload[len])
-			++len;
+	// frames left until the end of the burst, including the trailing silence
+	int length() final {
+		int symbols = 0;
+		if (count_down >= 5)
+			symbols += noise_count;
+		if (count_down >= 4)
+			++symbols;
+		if (count_down >= 3)
+			++symbols;
+		if (count_down >= 2 && operation_mode)
+			symbols += symbol_count * segments - symbol_number;
+		if (count_down >= 1)
+			symbols += fancy_line + 1;
+		return symbols * output_length;
+	}
+
+	// clip and filter iterations per symbol, more lower the peaks at the cost of CPU time and some distortion, none only turns down symbols that would overshoot
+	void papr_effort(int iterations) final {
+		iterations = std::clamp(iterations, 0, max_effort);
+		if (effort == iterations)
+			return;
+		effort = iterations;
+		symbol_cache.clear();
+	}
+
+	// peak-to-average power ratio in dB of what was produced since the last configure
+	float papr() final {
+		if (!power_count || power_sum <= 0)
+			return 0;
+		return DSP::decibel(peak_power * power_count / power_sum);
+	}
+
+	int render(int16_t *audio_buffer, int channel_select) final {
+		int frames = length();
+		int stride = (channel_select ? 2 : 1) * output_length;
+		for (int i = 0; i < frames / output_length; ++i)
+			produce(audio_buffer + stride * i, channel_select);
+		return frames;
+	}
+
+	/*
+	Payloads of up to 170 bytes fit into a single codeword and keep using
+	modes 14 to 16, chosen by where the first zero byte is, as before.
+	Longer ones go out as long bursts behind a single sync and preamble:
+	modes 17 to 19 carry 4, 8 or 16 codewords of mode 14.
+	*/
+	void configure(const uint8_t *payload, int length, const int8_t *call_sign, int carrier_frequency, int noise_symbols, bool fancy_header) final {
+		int size = std::clamp(length, 0, max_payload);
+		int len = size;
+		if (len <= 170) {
+			len = 0;
+			while (len < size && len <= 128 && payload[len])
+				++len;
+		}
 		if (!len)
 			operation_mode = 0;
 		else if (len <= 85)
 			operation_mode = 16;
 		else if (len <= 128)
 			operation_mode = 15;
-		else
+		else if (len <= 170)
 			operation_mode = 14;
+		else if (len <= 4 * 170)
+			operation_mode = 17;
+		else if (len <= 8 * 170)
+			operation_mode = 18;
+		else
+			operation_mode = 19;
+		segments = operation_mode > 16 ? 1 << (operation_mode - 15) : 1;
 		carrier_offset = (carrier_frequency * symbol_length) / RATE;
+		positive = carrier_offset + pay_car_off > 0 && carrier_offset - pay_car_off < symbol_length / 2;
 		meta_data = (base37(call_sign) << 8) | operation_mode;
 		for (int i = 0; i < 9; ++i)
 			call[i] = 0;
@@ -297,12 +535,18 @@ public:
 		count_down = 5;
 		fancy_line = 11 * fancy_header;
 		noise_count = noise_symbols;
+		peak_power = 0;
+		power_sum = 0;
+		power_count = 0;
 		for (int i = 0; i < guard_length; ++i)
 			guard[i] = 0;
 		const uint32_t *frozen_bits;
 		int data_bits;
 		switch (operation_mode) {
 			case 14:
+			case 17:
+			case 18:
+			case 19:
 				data_bits = 1360;
 				frozen_bits = frozen_2048_1392;
 				break;
@@ -317,9 +561,14 @@ public:
 			default:
 				return;
 		}
+		// one scrambler runs over all segments
 		CODE::Xorshift32 scrambler;
-		for (int i = 0; i < data_bits / 8; ++i)
-			mesg[i] = payload[i] ^ scrambler();
-		polar(code, mesg, frozen_bits, data_bits);
+		for (int j = 0; j < segments; ++j) {
+			for (int i = 0; i < data_bits / 8; ++i) {
+				int k = j * (data_bits / 8) + i;
+				mesg[i] = (k < size ? payload[k] : 0) ^ scrambler();
+			}
+			polar(code + code_len * j, mesg, frozen_bits, data_bits);
+		}
 	}
 };
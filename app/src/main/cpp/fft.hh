@@ -1160,5 +1160,41 @@ public:
 	}
 };
 
+/*
+Inverse of the above without the scaling: takes the bins zero to BINS/2 of
+a Hermitian spectrum and returns the BINS real samples, the same as the
+real part of the complex inverse transform, but with half the work.
+*/
+template <int BINS, typename TYPE>
+class HalfComplexToRealTransform
+{
+	static_assert(BINS%2==0, "BINS must be even");
+	static const int N = BINS / 2;
+	TYPE factors[N];
+	TYPE A[N], B[N];
+	TYPE tmp[N];
+public:
+	typedef typename TYPE::value_type value_type;
+	HalfComplexToRealTransform()
+	{
+		for (int n = 0; n < N; ++n)
+			factors[n] = TYPE(UnitCircle<value_type>::cos(n, N), UnitCircle<value_type>::sin(n, N));
+		for (int n = 0; n < N; ++n) {
+			TYPE cossin(
+				-UnitCircle<value_type>::sin(n, BINS),
+				UnitCircle<value_type>::cos(n, BINS)
+			);
+			A[n] = TYPE(1) + cossin;
+			B[n] = TYPE(1) - cossin;
+		}
+	}
+	inline void operator ()(value_type *out, const TYPE *in)
+	{
+		for (int i = 0; i < N; ++i)
+			tmp[i] = in[i]*A[i] + conj(in[N-i])*B[i];
+		FFT::Dit<FFT::split(N), N, 1, TYPE, 1>::dit(reinterpret_cast<TYPE *>(out), tmp, factors);
+	}
+};
+
 }
 
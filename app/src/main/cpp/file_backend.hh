@@ -0,0 +1,87 @@
+/*
+Raw PCM file audio backend
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+#pragma once
+
+#include <algorithm>
+#include <atomic>
+#include <chrono>
+#include <cstdio>
+#include <thread>
+#include "audio_backend.hh"
+
+/*
+Captures interleaved signed 16 bit samples in native byte order from a file
+and writes whatever gets played back into another one. Either file may be
+missing. The backend stops at the end of the input or after the given number
+of frames, if that is not zero, whatever comes first.
+*/
+class FileBackend : public AudioBackend {
+	static const int max_frames = 4096;
+	std::atomic<bool> active{false};
+	std::thread thread;
+	FILE *input, *output;
+	int rate, capture_channels, playback_channels, period;
+	long limit;
+	bool realtime;
+	int16_t capture_buffer[2 * max_frames];
+	int16_t playback_buffer[2 * max_frames];
+
+	void loop(AudioCallback *callback) {
+		auto deadline = std::chrono::steady_clock::now();
+		auto step = std::chrono::microseconds((1000000LL * period) / rate);
+		for (long done = 0; active.load(std::memory_order_relaxed) && (!limit || done < limit); done += period) {
+			int frames = limit ? std::min<long>(period, limit - done) : period;
+			if (output) {
+				callback->playback(playback_buffer, frames);
+				fwrite(playback_buffer, sizeof(int16_t) * playback_channels, frames, output);
+			}
+			if (input) {
+				int count = fread(capture_buffer, sizeof(int16_t) * capture_channels, frames, input);
+				if (count > 0)
+					callback->capture(capture_buffer, count);
+				if (count < frames)
+					break;
+			}
+			if (realtime) {
+				deadline += step;
+				std::this_thread::sleep_until(deadline);
+			}
+		}
+		active = false;
+	}
+
+public:
+	FileBackend(FILE *input, FILE *output, int rate, int capture_channels, int playback_channels, int period, long limit, bool realtime) :
+		input(input), output(output), rate(rate), capture_channels(capture_channels), playback_channels(playback_channels),
+		period(std::min(period, max_frames)), limit(limit), realtime(realtime) {
+	}
+
+	bool start(AudioCallback *callback) final {
+		if (thread.joinable())
+			return false;
+		if (capture_channels < 1 || capture_channels > 2 || playback_channels < 1 || playback_channels > 2)
+			return false;
+		active = true;
+		thread = std::thread(&FileBackend::loop, this, callback);
+		return true;
+	}
+
+	void stop() final {
+		active = false;
+		if (thread.joinable())
+			thread.join();
+	}
+
+	bool running() final {
+		return active;
+	}
+
+	~FileBackend() override {
+		stop();
+	}
+};
+
@@ -0,0 +1,85 @@
+/*
+Fixed-point discrete Hilbert transformation
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+#pragma once
+
+#ifdef __ARM_NEON
+#include <arm_neon.h>
+#endif
+#include "window.hh"
+#include "q15.hh"
+
+namespace DSP {
+
+/*
+Same filter as Hilbert, with Q15 coefficients and saturating arithmetic.
+The real part is only delayed, as the Kaiser window is one at its center.
+With NEON, eight odd taps are handled at once: the samples before and
+after the center are deinterleaved with vld2q, differenced with vqsubq
+and accumulated with vqdmlal.
+*/
+template <int TAPS>
+class HilbertQ15
+{
+	static_assert((TAPS-1) % 4 == 0, "TAPS-1 not divisible by four");
+	static const int ODD = (TAPS-1)/4;
+	static const int CENTER = (TAPS-1)/2;
+	int16_t real[2*TAPS];
+	int16_t imco[ODD];
+	int pos;
+#ifdef __ARM_NEON
+	static const bool VECTOR = ODD % 8 == 0;
+	int16_t rev[ODD];
+#endif
+public:
+	HilbertQ15(float a = 2) : pos(0)
+	{
+		Kaiser<float> win(a);
+		for (int i = 0; i < ODD; ++i)
+			imco[i] = saturate_q15(std::nearbyint(32768 * win((2*i+1)+CENTER, TAPS) * 2 / ((2*i+1) * Const<float>::Pi())));
+		for (int i = 0; i < 2*TAPS; ++i)
+			real[i] = 0;
+#ifdef __ARM_NEON
+		// vld2q deinterleaves the samples before the center nearest last
+		for (int j = 0; j < ODD; j += 8)
+			for (int i = 0; i < 8; ++i)
+				rev[j+i] = imco[j+7-i];
+#endif
+	}
+	ComplexQ15 operator()(int16_t input)
+	{
+		const int16_t *hist = real + pos;
+		int16_t re = hist[CENTER];
+		int64_t acc = 0;
+#ifdef __ARM_NEON
+		if (VECTOR) {
+			int32x4_t sum = vdupq_n_s32(0);
+			for (int j = 0; j < ODD; j += 8) {
+				// before[7-i] = hist[CENTER-(2*(j+i)+1)], after[i] = hist[CENTER+(2*(j+i)+1)]
+				int16x8_t before = vld2q_s16(hist + CENTER - 2*(j+8)).val[1];
+				int16x8_t after = vld2q_s16(hist + CENTER + 1 + 2*j).val[0];
+				int16x8_t coef = vld1q_s16(rev + j);
+				int16x8_t flip = vrev64q_s16(vcombine_s16(vget_high_s16(after), vget_low_s16(after)));
+				int16x8_t diff = vqsubq_s16(before, flip);
+				sum = vqdmlal_s16(sum, vget_low_s16(diff), vget_low_s16(coef));
+				sum = vqdmlal_s16(sum, vget_high_s16(diff), vget_high_s16(coef));
+			}
+			int64x2_t pair = vpaddlq_s32(sum);
+			acc = vgetq_lane_s64(pair, 0) + vgetq_lane_s64(pair, 1);
+		} else
+#endif
+		for (int i = 0; i < ODD; ++i)
+			acc += 2 * imco[i] * saturate_q15(hist[CENTER-(2*i+1)] - hist[CENTER+(2*i+1)]);
+		int16_t im = round_q15(acc, 16);
+		real[pos] = real[pos+TAPS] = input;
+		if (++pos >= TAPS)
+			pos = 0;
+		return ComplexQ15(re, im);
+	}
+};
+
+}
+
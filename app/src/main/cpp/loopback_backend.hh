@@ -0,0 +1,78 @@
+/*
+In-process loopback audio backend
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+#pragma once
+
+#include <algorithm>
+#include <atomic>
+#include <chrono>
+#include <random>
+#include <thread>
+#include "audio_backend.hh"
+
+// plays back into its own capture side, as fast as possible or paced in real time, with optional white noise
+class LoopbackBackend : public AudioBackend {
+	static const int max_frames = 4096;
+	std::atomic<bool> active{false};
+	std::thread thread;
+	std::minstd_rand generator;
+	std::normal_distribution<float> distribution;
+	int rate, channels, period;
+	float noise;
+	bool realtime;
+	int16_t buffer[2 * max_frames];
+
+	void add_noise() {
+		for (int i = 0; i < channels * period; ++i) {
+			float value = buffer[i] + noise * distribution(generator);
+			buffer[i] = std::clamp<float>(std::nearbyint(value), -32768, 32767);
+		}
+	}
+
+	void loop(AudioCallback *callback) {
+		auto deadline = std::chrono::steady_clock::now();
+		auto step = std::chrono::microseconds((1000000LL * period) / rate);
+		while (active.load(std::memory_order_relaxed)) {
+			callback->playback(buffer, period);
+			if (noise > 0)
+				add_noise();
+			callback->capture(buffer, period);
+			if (realtime) {
+				deadline += step;
+				std::this_thread::sleep_until(deadline);
+			}
+		}
+	}
+
+public:
+	// noise is the standard deviation in units of the samples
+	LoopbackBackend(int rate, int channels, int period, bool realtime, float noise = 0) :
+		rate(rate), channels(channels), period(std::min(period, max_frames)), noise(noise), realtime(realtime) {
+	}
+
+	bool start(AudioCallback *callback) final {
+		if (active || channels < 1 || channels > 2)
+			return false;
+		active = true;
+		thread = std::thread(&LoopbackBackend::loop, this, callback);
+		return true;
+	}
+
+	void stop() final {
+		active = false;
+		if (thread.joinable())
+			thread.join();
+	}
+
+	bool running() final {
+		return active;
+	}
+
+	~LoopbackBackend() override {
+		stop();
+	}
+};
+
@@ -0,0 +1,44 @@
+/*
+Bounded least recently used cache
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+#pragma once
+
+#include <cstdint>
+
+template<typename KEY, typename VALUE, int NUM>
+class LeastRecentlyUsed {
+	VALUE values[NUM];
+	KEY keys[NUM];
+	uint32_t stamps[NUM] = {0};
+	uint32_t clock = 0;
+public:
+	VALUE *find(const KEY &key) {
+		for (int i = 0; i < NUM; ++i) {
+			if (stamps[i] && keys[i] == key) {
+				stamps[i] = ++clock;
+				return values + i;
+			}
+		}
+		return nullptr;
+	}
+
+	void clear() {
+		for (int i = 0; i < NUM; ++i)
+			stamps[i] = 0;
+	}
+
+	// evicts the least recently used entry, caller fills in the value
+	VALUE *insert(const KEY &key) {
+		int oldest = 0;
+		for (int i = 1; i < NUM; ++i)
+			if (stamps[i] < stamps[oldest])
+				oldest = i;
+		keys[oldest] = key;
+		stamps[oldest] = ++clock;
+		return values + oldest;
+	}
+};
+
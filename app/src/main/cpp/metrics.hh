@@ -0,0 +1,102 @@
+/*
+Decoder counters and timing histograms
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+#pragma once
+
+#include <chrono>
+#include <cstdint>
+
+struct Metrics {
+	enum Stage {
+		FEED,
+		PREAMBLE,
+		PROCESS,
+		COMPENSATE,
+		POLAR,
+		STAGES
+	};
+	enum Counter {
+		TRIGGERS,
+		PREAMBLE_FAIL,
+		NOPE,
+		PING,
+		DONE,
+		POLAR_FAIL,
+		FLIPS,
+		DROPPED,
+		ERASED,
+		OFF_BAND,
+		COUNTERS
+	};
+	typedef std::chrono::steady_clock clock;
+	typedef clock::time_point time_point;
+	static const int bins = 16;
+	static const int size = COUNTERS + STAGES * bins + bins;
+	bool enabled = false;
+	int32_t counters[COUNTERS];
+	// bin n counts durations below 2^n microseconds, the last bin takes the rest
+	int32_t stages[STAGES][bins];
+	// precision() of every payload symbol in 2 dB steps
+	int32_t snr[bins];
+
+	Metrics() {
+		reset();
+	}
+
+	void reset() {
+		for (int i = 0; i < COUNTERS; ++i)
+			counters[i] = 0;
+		for (int j = 0; j < STAGES; ++j)
+			for (int i = 0; i < bins; ++i)
+				stages[j][i] = 0;
+		for (int i = 0; i < bins; ++i)
+			snr[i] = 0;
+	}
+
+	void count(Counter counter, int value = 1) {
+		if (enabled)
+			counters[counter] += value;
+	}
+
+	// no clock is read while disabled
+	time_point start() {
+		if (!enabled)
+			return time_point();
+		return clock::now();
+	}
+
+	void stop(Stage stage, time_point begin) {
+		if (!enabled || begin == time_point())
+			return;
+		auto micros = std::chrono::duration_cast<std::chrono::microseconds>(clock::now() - begin).count();
+		int bin = 0;
+		while (bin < bins - 1 && micros >= (1L << bin))
+			++bin;
+		++stages[stage][bin];
+	}
+
+	void precision(float decibel) {
+		if (!enabled)
+			return;
+		int bin = decibel / 2;
+		bin = bin < 0 ? 0 : bin >= bins ? bins - 1 : bin;
+		++snr[bin];
+	}
+
+	// counters, then stage histograms, then the precision histogram
+	int copy(int32_t *values, int max_count) const {
+		int count = 0;
+		for (int i = 0; i < COUNTERS && count < max_count; ++i)
+			values[count++] = counters[i];
+		for (int j = 0; j < STAGES; ++j)
+			for (int i = 0; i < bins && count < max_count; ++i)
+				values[count++] = stages[j][i];
+		for (int i = 0; i < bins && count < max_count; ++i)
+			values[count++] = snr[i];
+		return count;
+	}
+};
+
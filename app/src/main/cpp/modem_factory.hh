@@ -0,0 +1,44 @@
+/*
+Encoders and decoders for all supported sample rates
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+#pragma once
+
+#include <new>
+#include "encoder.hh"
+#include "decoder.hh"
+
+// nullptr for unsupported rates or when out of memory
+inline EncoderInterface *createEncoder(int rate) {
+	switch (rate) {
+		case 8000:
+			return new(std::nothrow) Encoder<8000>();
+		case 16000:
+			return new(std::nothrow) Encoder<8000, 16000>();
+		case 32000:
+			return new(std::nothrow) Encoder<8000, 32000>();
+		case 44100:
+			return new(std::nothrow) Encoder<8000, 44100>();
+		case 48000:
+			return new(std::nothrow) Encoder<8000, 48000>();
+	}
+	return nullptr;
+}
+
+inline DecoderInterface *createDecoder(int rate) {
+	switch (rate) {
+		case 8000:
+			return new(std::nothrow) Decoder<8000>();
+		case 16000:
+			return new(std::nothrow) Decoder<8000, 16000>();
+		case 32000:
+			return new(std::nothrow) Decoder<8000, 32000>();
+		case 44100:
+			return new(std::nothrow) Decoder<8000, 44100>();
+		case 48000:
+			return new(std::nothrow) Decoder<8000, 48000>();
+	}
+	return nullptr;
+}
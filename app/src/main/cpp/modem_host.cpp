@@ -0,0 +1,296 @@
+/*
+Runs the real-time pipeline on a plain host without a device
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+#include <algorithm>
+#include <atomic>
+#include <chrono>
+#include <climits>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <random>
+#include <thread>
+#define assert(expr) do {} while (0)
+#include "modem_factory.hh"
+#include "audio_pipeline.hh"
+#include "file_backend.hh"
+#include "loopback_backend.hh"
+
+// counts the frames going through, so we can tell audio time from wall time
+struct CountingCallback : public AudioCallback {
+	AudioCallback *next;
+	std::atomic<long> frames{0};
+
+	explicit CountingCallback(AudioCallback *next) : next(next) {
+	}
+
+	void capture(const int16_t *samples, int count) final {
+		next->capture(samples, count);
+		frames += count;
+	}
+
+	void playback(int16_t *samples, int count) final {
+		next->playback(samples, count);
+	}
+};
+
+static std::mutex mutex;
+static DecoderInterface *decoder;
+
+static int pollEvents() {
+	DecoderEvent events[16];
+	int count;
+	{
+		std::lock_guard<std::mutex> lock(mutex);
+		count = decoder->poll(events, 16);
+	}
+	int done = 0;
+	for (int i = 0; i < count; ++i) {
+		DecoderEvent &event = events[i];
+		switch (event.status) {
+			case STATUS_FAIL:
+				std::cerr << "preamble fail" << std::endl;
+				break;
+			case STATUS_NOPE:
+				std::cerr << "mode " << event.mode << " not supported from " << event.call << std::endl;
+				break;
+			case STATUS_PING:
+				std::cerr << "ping from " << event.call << std::endl;
+				++done;
+				break;
+			case STATUS_SYNC:
+				std::cerr << "sync mode " << event.mode << " from " << event.call << " cfo " << event.cfo << " Hz" << std::endl;
+				break;
+			case STATUS_DONE:
+				if (event.result < 0) {
+					std::cerr << "decoding failed" << std::endl;
+				} else {
+					std::cerr << "flips " << event.result << " precision " << event.precision << " dB";
+					if (event.segments > 1)
+						std::cerr << " segment " << event.segment + 1 << " of " << event.segments;
+					std::cerr << std::endl;
+					// the segments of a long burst make up one message
+					std::cout << reinterpret_cast<const char *>(event.payload);
+					if (event.segment + 1 == event.segments)
+						std::cout << std::endl;
+				}
+				if (event.segment + 1 == event.segments)
+					++done;
+				break;
+		}
+	}
+	return done;
+}
+
+static void printMetrics(Metrics *metrics) {
+	static const char *counters[] = {"triggers", "preamble_fail", "nope", "ping", "done", "polar_fail", "flips", "dropped", "erased", "off_band"};
+	static const char *stages[] = {"feed", "preamble", "process", "compensate", "polar"};
+	std::lock_guard<std::mutex> lock(mutex);
+	for (int i = 0; i < Metrics::COUNTERS; ++i)
+		std::cerr << counters[i] << "=" << metrics->counters[i] << " ";
+	std::cerr << std::endl;
+	for (int j = 0; j < Metrics::STAGES; ++j) {
+		std::cerr << stages[j] << "=";
+		for (int i = 0; i < Metrics::bins; ++i)
+			std::cerr << metrics->stages[j][i] << (i + 1 < Metrics::bins ? "," : "\n");
+	}
+}
+
+static void reportSpeed(std::chrono::steady_clock::time_point begin, long frames, int rate) {
+	double wall = std::chrono::duration<double>(std::chrono::steady_clock::now() - begin).count();
+	double audio = double(frames) / rate;
+	std::cerr << audio << " s of audio in " << wall << " s, " << audio / wall << " times real time" << std::endl;
+}
+
+static void configure(EncoderInterface *encoder, const char *message) {
+	encoder->configure(reinterpret_cast<const uint8_t *>(message), strlen(message), reinterpret_cast<const int8_t *>("HOST"), 1500, 0, false);
+}
+
+/*
+Drops LENGTH frames of a rendered burst at the given offset, the way a
+capture overrun would, and tells whether the decoder still got the
+message out of what was left. The gap is either reported through lost()
+or left for the decoder to run into unaware.
+*/
+static bool decodeAcrossGap(const int16_t *audio, int frames, int offset, int length, int rate, int channel, bool fixed, bool report, const char *message) {
+	DecoderInterface *gapped = createDecoder(rate);
+	gapped->fixed_point(fixed);
+	int channels = channel ? 2 : 1;
+	int period = rate / 50;
+	bool decoded = false;
+	for (int i = 0; i < frames; ) {
+		int count = std::min(period, frames - i);
+		if (i < offset && offset < i + count)
+			count = offset - i;
+		if (gapped->feed(audio + channels * i, count, channel))
+			gapped->process();
+		DecoderEvent events[DecoderInterface::process_events];
+		int polled = gapped->poll(events, DecoderInterface::process_events);
+		for (int j = 0; j < polled; ++j)
+			if (events[j].status == STATUS_DONE && events[j].result >= 0 && !strcmp(reinterpret_cast<const char *>(events[j].payload), message))
+				decoded = true;
+		i += count;
+		if (i == offset) {
+			i += length;
+			if (report)
+				gapped->lost(length);
+		}
+	}
+	delete gapped;
+	return decoded;
+}
+
+static int usage(const char *name) {
+	std::cerr << "usage: " << name << " loopback RATE CHANNEL COUNT [OPTIONS]" << std::endl;
+	std::cerr << "       " << name << " decode RATE CHANNEL [OPTIONS] < INPUT.raw" << std::endl;
+	std::cerr << "       " << name << " encode RATE CHANNEL MESSAGE > OUTPUT.raw" << std::endl;
+	std::cerr << "       " << name << " gap RATE CHANNEL COUNT LENGTH [OPTIONS]" << std::endl;
+	std::cerr << "options: realtime, fixed (fixed-point front end), multi (multi-carrier receive), band=MIN:MAX (carrier range in Hz), papr=EFFORT (0-8), noise=DBFS (loopback and gap only)" << std::endl;
+	return 1;
+}
+
+int main(int argc, char **argv) {
+	if (argc < 4)
+		return usage(argv[0]);
+	const char *command = argv[1];
+	int rate = std::atoi(argv[2]);
+	int channel = std::atoi(argv[3]);
+	bool loopback = !strcmp(command, "loopback");
+	bool decode = !strcmp(command, "decode");
+	bool encode = !strcmp(command, "encode");
+	bool gap = !strcmp(command, "gap");
+	if ((!loopback && !decode && !encode && !gap) || ((loopback || encode) && argc < 5) || (gap && argc < 6))
+		return usage(argv[0]);
+	bool realtime = false, fixed = false, multi = false;
+	int effort = 1;
+	int band_min = INT_MIN, band_max = INT_MAX;
+	float noise = 0;
+	for (int i = decode ? 4 : gap ? 6 : 5; i < argc; ++i) {
+		if (!strcmp(argv[i], "realtime"))
+			realtime = true;
+		else if (!strcmp(argv[i], "fixed"))
+			fixed = true;
+		else if (!strcmp(argv[i], "multi"))
+			multi = true;
+		else if (!strncmp(argv[i], "band=", 5) && std::sscanf(argv[i] + 5, "%d:%d", &band_min, &band_max) == 2 && band_min <= band_max)
+			continue;
+		else if (!strncmp(argv[i], "papr=", 5))
+			effort = std::atoi(argv[i] + 5);
+		else if (!strncmp(argv[i], "noise=", 6))
+			noise = 32768 * std::pow(10.f, std::atof(argv[i] + 6) / 20);
+		else
+			return usage(argv[0]);
+	}
+	EncoderInterface *encoder = nullptr;
+	if (gap) {
+		encoder = createEncoder(rate);
+		if (!encoder)
+			return usage(argv[0]);
+		encoder->papr_effort(effort);
+		const char *message = "message 0";
+		configure(encoder, message);
+		// half a second of lead and a second of tail, so the burst is found and finished
+		int lead = rate / 2, burst = encoder->length(), frames = lead + burst + rate;
+		int channels = channel ? 2 : 1;
+		int16_t *audio = new int16_t[channels * frames]();
+		encoder->render(audio + channels * lead, channel);
+		if (noise > 0) {
+			std::minstd_rand rng(1);
+			std::normal_distribution<float> dist(0, noise);
+			for (int i = 0; i < channels * frames; ++i)
+				audio[i] = std::clamp<float>(std::nearbyint(audio[i] + dist(rng)), -32768, 32767);
+		}
+		int count = std::atoi(argv[4]);
+		int length = std::atoi(argv[5]);
+		int reported = 0, unreported = 0;
+		for (int i = 0; i < count; ++i) {
+			int offset = lead + int(long(i) * burst / count);
+			reported += decodeAcrossGap(audio, frames, offset, length, rate, channel, fixed, true, message);
+			unreported += decodeAcrossGap(audio, frames, offset, length, rate, channel, fixed, false, message);
+		}
+		std::cerr << "decoded " << reported << " of " << count << " with lost() and " << unreported << " without" << std::endl;
+		delete[] audio;
+		delete encoder;
+		return reported < unreported;
+	}
+	if (loopback || encode) {
+		encoder = createEncoder(rate);
+		if (!encoder)
+			return usage(argv[0]);
+		encoder->papr_effort(effort);
+	}
+	if (loopback || decode) {
+		decoder = createDecoder(rate);
+		if (!decoder)
+			return usage(argv[0]);
+		decoder->metrics()->enabled = true;
+		decoder->fixed_point(fixed);
+		decoder->multi_carrier(multi);
+		decoder->carrier_range(band_min, band_max);
+	}
+	// without real-time pacing the backends wait for the decoder instead of dropping frames
+	AudioPipeline *pipeline = new AudioPipeline(mutex, &decoder, rate, channel, encoder, channel, !realtime);
+	CountingCallback counter(pipeline);
+	if (encode) {
+		configure(encoder, argv[4]);
+		pipeline->transmit();
+	}
+	AudioBackend *backend;
+	if (loopback)
+		backend = new LoopbackBackend(rate, pipeline->captureChannels(), rate / 100, realtime, noise);
+	else if (decode)
+		backend = new FileBackend(stdin, nullptr, rate, pipeline->captureChannels(), 1, rate / 100, 0, realtime);
+	// followed by a second of silence, so a decoder reading the file has something to chew on
+	else
+		backend = new FileBackend(nullptr, stdout, rate, 1, pipeline->playbackChannels(), rate / 100, encoder->length() + rate, false);
+	auto begin = std::chrono::steady_clock::now();
+	if (!backend->start(&counter)) {
+		std::cerr << "could not start audio backend" << std::endl;
+		return 1;
+	}
+	int received = 0;
+	if (loopback) {
+		int count = std::atoi(argv[4]);
+		char message[32];
+		for (int i = 0; i < count; ++i) {
+			snprintf(message, sizeof(message), "message %d", i);
+			configure(encoder, message);
+			pipeline->transmit();
+			while (pipeline->busy()) {
+				received += pollEvents();
+				std::this_thread::sleep_for(std::chrono::milliseconds(1));
+			}
+		}
+		// give the decoder up to two seconds of audio after the last one to finish it
+		long deadline = counter.frames + 2 * rate;
+		while (received < count && counter.frames - pipeline->backlog() < deadline) {
+			received += pollEvents();
+			std::this_thread::sleep_for(std::chrono::milliseconds(1));
+		}
+		std::cerr << "received " << received << " of " << count << std::endl;
+	} else {
+		while (backend->running()) {
+			if (decode)
+				pollEvents();
+			std::this_thread::sleep_for(std::chrono::milliseconds(10));
+		}
+	}
+	backend->stop();
+	pipeline->finish();
+	if (encoder)
+		std::cerr << "peak-to-average power ratio " << encoder->papr() << " dB" << std::endl;
+	if (decoder) {
+		received += pollEvents();
+		reportSpeed(begin, counter.frames, rate);
+		printMetrics(decoder->metrics());
+	}
+	delete backend;
+	delete pipeline;
+	delete decoder;
+	delete encoder;
+	return loopback && received < std::atoi(argv[4]);
+}
+
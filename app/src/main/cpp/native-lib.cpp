@@ -5,12 +5,24 @@ Copyright 2022 Ahmet Inan <inan@aicodix.de>
 */
 
 #include <jni.h>
+#include <android/bitmap.h>
+#include <climits>
 #define assert(expr) do {} while (0)
-#include "encoder.hh"
-#include "decoder.hh"
+#include "modem_factory.hh"
+#include "audio_pipeline.hh"
+#include "aaudio_backend.hh"
 
 static EncoderInterface *encoder;
 static DecoderInterface *decoder;
+static bool metricsEnabled;
+static int blackBoxTriggers, blackBoxAfter;
+static bool fixedPointEnabled;
+static bool multiCarrierEnabled;
+static int carrierRangeMin = INT_MIN, carrierRangeMax = INT_MAX;
+// held by everything touching the decoder, the UI only tries to take it where it can just skip a turn
+static std::mutex decoderMutex;
+static AudioPipeline *pipeline;
+static AudioBackend *backend;
 
 extern "C" JNIEXPORT jboolean JNICALL
 Java_com_aicodix_rattlegram_MainActivity_createEncoder(
@@ -20,25 +32,7 @@ Java_com_aicodix_rattlegram_MainActivity_createEncoder(
 	if (encoder && encoder->rate() == sampleRate)
 		return true;
 	delete encoder;
-	switch (sampleRate) {
-		case 8000:
-			encoder = new(std::nothrow) Encoder<8000>();
-			break;
-		case 16000:
-			encoder = new(std::nothrow) Encoder<16000>();
-			break;
-		case 32000:
-			encoder = new(std::nothrow) Encoder<32000>();
-			break;
-		case 44100:
-			encoder = new(std::nothrow) Encoder<44100>();
-			break;
-		case 48000:
-			encoder = new(std::nothrow) Encoder<48000>();
-			break;
-		default:
-			encoder = nullptr;
-	}
+	encoder = createEncoder(sampleRate);
 	return encoder != nullptr;
 }
 
@@ -50,22 +44,66 @@ Java_com_aicodix_rattlegram_MainActivity_destroyEncoder(
 	encoder = nullptr;
 }
 
-extern "C" JNIEXPORT jboolean JNICALL
-Java_com_aicodix_rattlegram_MainActivity_produceEncoder(
+extern "C" JNIEXPORT jint JNICALL
+Java_com_aicodix_rattlegram_MainActivity_lengthEncoder(
+	JNIEnv *,
+	jobject) {
+
+	if (!encoder)
+		return 0;
+
+	return encoder->length();
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_aicodix_rattlegram_MainActivity_renderEncoder(
 	JNIEnv *env,
 	jobject,
 	jshortArray JNI_audioBuffer,
 	jint channelSelect) {
 
+	jint frames = 0;
+
 	if (!encoder)
-		return false;
+		return frames;
+
+	if (env->GetArrayLength(JNI_audioBuffer) < encoder->length() * (channelSelect ? 2 : 1))
+		return frames;
+
+	jshort *audioBuffer;
+	audioBuffer = env->GetShortArrayElements(JNI_audioBuffer, nullptr);
+	if (!audioBuffer)
+		goto audioBufferFail;
+
+	frames = encoder->render(audioBuffer, channelSelect);
 
-	jshort *audioBuffer = env->GetShortArrayElements(JNI_audioBuffer, nullptr);
-	jboolean okay = false;
-	if (audioBuffer)
-		okay = encoder->produce(audioBuffer, channelSelect);
 	env->ReleaseShortArrayElements(JNI_audioBuffer, audioBuffer, 0);
-	return okay;
+	audioBufferFail:
+
+	return frames;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_aicodix_rattlegram_MainActivity_effortEncoder(
+	JNIEnv *,
+	jobject,
+	jint effort) {
+
+	if (!encoder)
+		return;
+
+	encoder->papr_effort(effort);
+}
+
+extern "C" JNIEXPORT jfloat JNICALL
+Java_com_aicodix_rattlegram_MainActivity_paprEncoder(
+	JNIEnv *,
+	jobject) {
+
+	if (!encoder)
+		return 0;
+
+	return encoder->papr();
 }
 
 extern "C" JNIEXPORT void JNICALL
@@ -91,6 +129,7 @@ Java_com_aicodix_rattlegram_MainActivity_configureEncoder(
 
 	encoder->configure(
 		reinterpret_cast<uint8_t *>(payload),
+		env->GetArrayLength(JNI_payload),
 		reinterpret_cast<int8_t *>(callSign),
 		carrierFrequency,
 		noiseSymbols,
@@ -106,158 +145,333 @@ extern "C" JNIEXPORT void JNICALL
 Java_com_aicodix_rattlegram_MainActivity_destroyDecoder(
 	JNIEnv *,
 	jobject) {
+	std::lock_guard<std::mutex> lock(decoderMutex);
 	delete decoder;
 	decoder = nullptr;
 }
 
-extern "C" JNIEXPORT jboolean JNICALL
+// may run on any thread, the decoder is only handed over by installDecoder
+extern "C" JNIEXPORT jlong JNICALL
 Java_com_aicodix_rattlegram_MainActivity_createDecoder(
 	JNIEnv *,
 	jobject,
 	jint sampleRate) {
-	if (decoder && decoder->rate() == sampleRate)
-		return true;
+	return reinterpret_cast<jlong>(createDecoder(sampleRate));
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_aicodix_rattlegram_MainActivity_installDecoder(
+	JNIEnv *,
+	jobject,
+	jlong created) {
+	std::lock_guard<std::mutex> lock(decoderMutex);
 	delete decoder;
-	switch (sampleRate) {
-		case 8000:
-			decoder = new(std::nothrow) Decoder<8000>();
-			break;
-		case 16000:
-			decoder = new(std::nothrow) Decoder<16000>();
-			break;
-		case 32000:
-			decoder = new(std::nothrow) Decoder<32000>();
-			break;
-		case 44100:
-			decoder = new(std::nothrow) Decoder<44100>();
-			break;
-		case 48000:
-			decoder = new(std::nothrow) Decoder<48000>();
-			break;
-		default:
-			decoder = nullptr;
+	decoder = reinterpret_cast<DecoderInterface *>(created);
+	if (decoder) {
+		decoder->metrics()->enabled = metricsEnabled;
+		decoder->blackbox(blackBoxTriggers, blackBoxAfter);
+		decoder->fixed_point(fixedPointEnabled);
+		decoder->multi_carrier(multiCarrierEnabled);
+		decoder->carrier_range(carrierRangeMin, carrierRangeMax);
 	}
-	return decoder != nullptr;
 }
 
-extern "C" JNIEXPORT jint JNICALL
-Java_com_aicodix_rattlegram_MainActivity_fetchDecoder(
-	JNIEnv *env,
+extern "C" JNIEXPORT void JNICALL
+Java_com_aicodix_rattlegram_MainActivity_deleteDecoder(
+	JNIEnv *,
 	jobject,
-	jbyteArray JNI_payload) {
-	jint status = -1;
+	jlong created) {
+	delete reinterpret_cast<DecoderInterface *>(created);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_aicodix_rattlegram_MainActivity_enableMetrics(
+	JNIEnv *,
+	jobject,
+	jboolean enable) {
+	std::lock_guard<std::mutex> lock(decoderMutex);
+	metricsEnabled = enable;
 	if (decoder) {
-		jbyte *payload = env->GetByteArrayElements(JNI_payload, nullptr);
-		if (payload)
-			status = decoder->fetch(reinterpret_cast<uint8_t *>(payload));
-		env->ReleaseByteArrayElements(JNI_payload, payload, 0);
+		decoder->metrics()->enabled = enable;
+		decoder->metrics()->reset();
 	}
-	return status;
 }
 
 extern "C" JNIEXPORT void JNICALL
-Java_com_aicodix_rattlegram_MainActivity_stagedDecoder(
+Java_com_aicodix_rattlegram_MainActivity_enableBlackBox(
+	JNIEnv *,
+	jobject,
+	jint triggers,
+	jint samplesAfter) {
+	std::lock_guard<std::mutex> lock(decoderMutex);
+	blackBoxTriggers = triggers;
+	blackBoxAfter = samplesAfter;
+	if (decoder)
+		decoder->blackbox(triggers, samplesAfter);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_aicodix_rattlegram_MainActivity_enableFixedPoint(
+	JNIEnv *,
+	jobject,
+	jboolean enable) {
+	std::lock_guard<std::mutex> lock(decoderMutex);
+	fixedPointEnabled = enable;
+	if (decoder)
+		decoder->fixed_point(enable);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_aicodix_rattlegram_MainActivity_enableMultiCarrier(
+	JNIEnv *,
+	jobject,
+	jboolean enable) {
+	std::lock_guard<std::mutex> lock(decoderMutex);
+	multiCarrierEnabled = enable;
+	if (decoder)
+		decoder->multi_carrier(enable);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_aicodix_rattlegram_MainActivity_setCarrierRange(
+	JNIEnv *,
+	jobject,
+	jint minFrequency,
+	jint maxFrequency) {
+	std::lock_guard<std::mutex> lock(decoderMutex);
+	carrierRangeMin = minFrequency;
+	carrierRangeMax = maxFrequency;
+	if (decoder)
+		decoder->carrier_range(minFrequency, maxFrequency);
+}
+
+// unfreezes the history when there is no buffer to dump it into
+extern "C" JNIEXPORT void JNICALL
+Java_com_aicodix_rattlegram_MainActivity_discardBlackBox(
+	JNIEnv *,
+	jobject) {
+	std::lock_guard<std::mutex> lock(decoderMutex);
+	if (decoder)
+		decoder->discard();
+}
+
+// copies the frozen I/Q pairs into a direct ByteBuffer behind a header of headerSize bytes, zero while the decoder still records
+extern "C" JNIEXPORT jint JNICALL
+Java_com_aicodix_rattlegram_MainActivity_dumpBlackBox(
 	JNIEnv *env,
 	jobject,
-	jfloatArray JNI_carrierFrequencyOffset,
-	jintArray JNI_operationMode,
-	jbyteArray JNI_callSign) {
+	jobject JNI_dump,
+	jint headerSize) {
+
+	// the history stays frozen, so a busy decoder only means asking again later
+	std::unique_lock<std::mutex> lock(decoderMutex, std::try_to_lock);
+
+	if (!lock.owns_lock())
+		return 0;
 
 	if (!decoder)
-		return;
+		return -1;
 
-	jint *operationMode;
-	jfloat *carrierFrequencyOffset;
-	jbyte *callSign;
-	carrierFrequencyOffset = env->GetFloatArrayElements(JNI_carrierFrequencyOffset, nullptr);
-	if (!carrierFrequencyOffset)
-		goto carrierFrequencyOffsetFail;
-	operationMode = env->GetIntArrayElements(JNI_operationMode, nullptr);
-	if (!operationMode)
-		goto operationModeFail;
-	callSign = env->GetByteArrayElements(JNI_callSign, nullptr);
-	if (!callSign)
-		goto callSignFail;
+	auto dump = reinterpret_cast<uint8_t *>(env->GetDirectBufferAddress(JNI_dump));
+	jlong capacity = env->GetDirectBufferCapacity(JNI_dump);
+	if (!dump || headerSize < 0 || headerSize % 4 || capacity < headerSize)
+		return -1;
 
-	decoder->staged(
-		reinterpret_cast<float *>(carrierFrequencyOffset),
-		reinterpret_cast<int32_t *>(operationMode),
-		reinterpret_cast<uint8_t *>(callSign));
+	return decoder->dump(
+		reinterpret_cast<int16_t *>(dump + headerSize),
+		(int) ((capacity - headerSize) / (2 * sizeof(int16_t))));
+}
 
-	env->ReleaseByteArrayElements(JNI_callSign, callSign, 0);
-	callSignFail:
-	env->ReleaseIntArrayElements(JNI_operationMode, operationMode, 0);
-	operationModeFail:
-	env->ReleaseFloatArrayElements(JNI_carrierFrequencyOffset, carrierFrequencyOffset, 0);
-	carrierFrequencyOffsetFail:;
+// copies the metrics gathered since the last call and starts over, -1 while the decoder is busy
+extern "C" JNIEXPORT jint JNICALL
+Java_com_aicodix_rattlegram_MainActivity_readMetrics(
+	JNIEnv *env,
+	jobject,
+	jintArray JNI_values) {
+
+	std::unique_lock<std::mutex> lock(decoderMutex, std::try_to_lock);
+
+	if (!lock.owns_lock())
+		return -1;
+
+	jint count = 0;
+
+	if (!decoder)
+		return count;
+
+	jint *values;
+	values = env->GetIntArrayElements(JNI_values, nullptr);
+	if (!values)
+		goto valuesFail;
+
+	count = decoder->metrics()->copy(
+		reinterpret_cast<int32_t *>(values),
+		env->GetArrayLength(JNI_values));
+	decoder->metrics()->reset();
+
+	env->ReleaseIntArrayElements(JNI_values, values, 0);
+	valuesFail:
+
+	return count;
 }
 
-extern "C" JNIEXPORT jboolean JNICALL
+// feeds one period of audio and drains the decoder events into a direct ByteBuffer
+extern "C" JNIEXPORT jint JNICALL
 Java_com_aicodix_rattlegram_MainActivity_feedDecoder(
 	JNIEnv *env,
 	jobject,
 	jshortArray JNI_audioBuffer,
 	jint sampleCount,
-	jint channelSelect) {
+	jint channelSelect,
+	jobject JNI_events) {
 
-	jboolean status = false;
+	std::lock_guard<std::mutex> lock(decoderMutex);
 
 	if (!decoder)
-		return status;
+		return -1;
+
+	auto events = reinterpret_cast<DecoderEvent *>(env->GetDirectBufferAddress(JNI_events));
+	jlong eventCount = env->GetDirectBufferCapacity(JNI_events) / (jlong) sizeof(DecoderEvent);
+	if (!events || eventCount <= 0)
+		return -1;
 
 	jshort *audioBuffer;
 	audioBuffer = env->GetShortArrayElements(JNI_audioBuffer, nullptr);
 	if (!audioBuffer)
 		goto audioBufferFail;
 
-	status = decoder->feed(
+	if (decoder->feed(
 		reinterpret_cast<int16_t *>(audioBuffer),
-		sampleCount, channelSelect);
+		sampleCount, channelSelect))
+		decoder->process();
 
 	env->ReleaseShortArrayElements(JNI_audioBuffer, audioBuffer, JNI_ABORT);
 	audioBufferFail:
 
-	return status;
+	return decoder->poll(events, (int) eventCount);
 }
 
-extern "C" JNIEXPORT jint JNICALL
-Java_com_aicodix_rattlegram_MainActivity_processDecoder(
+// the capture lost sampleCount frames after what got fed so far
+extern "C" JNIEXPORT void JNICALL
+Java_com_aicodix_rattlegram_MainActivity_lostDecoder(
 	JNIEnv *,
-	jobject) {
-
-	if (!decoder)
-		return STATUS_HEAP;
+	jobject,
+	jint sampleCount) {
+	std::lock_guard<std::mutex> lock(decoderMutex);
+	if (decoder)
+		decoder->lost(sampleCount);
+}
 
-	return decoder->process();
+static bool checkBitmap(JNIEnv *env, jobject bitmap, int width, int height) {
+	AndroidBitmapInfo info;
+	if (AndroidBitmap_getInfo(env, bitmap, &info) != ANDROID_BITMAP_RESULT_SUCCESS)
+		return false;
+	return info.format == ANDROID_BITMAP_FORMAT_RGBA_8888 && info.stride == 4 * info.width
+		&& (int) info.width == width && (int) info.height == height;
 }
 
-extern "C" JNIEXPORT void JNICALL
+// the spectrogram bitmap is twice as high, show the rows starting at the returned one
+extern "C" JNIEXPORT jint JNICALL
 Java_com_aicodix_rattlegram_MainActivity_spectrumDecoder(
 	JNIEnv *env,
 	jobject,
-	jintArray JNI_spectrumPixels,
-	jintArray JNI_spectrogramPixels,
+	jobject JNI_spectrumBitmap,
+	jobject JNI_spectrogramBitmap,
 	jint spectrumTint) {
 
-	if (!decoder)
-		return;
+	jint row = -1;
 
-	jint *spectrumPixels, *spectrogramPixels;
-	spectrumPixels = env->GetIntArrayElements(JNI_spectrumPixels, nullptr);
-	if (!spectrumPixels)
+	// the decoder might be busy with a polar decode, better skip a frame than stall the UI
+	std::unique_lock<std::mutex> lock(decoderMutex, std::try_to_lock);
+
+	if (!lock.owns_lock() || !decoder)
+		return row;
+
+	if (!checkBitmap(env, JNI_spectrumBitmap, DecoderInterface::spectrum_width, DecoderInterface::spectrum_height))
+		return row;
+	if (!checkBitmap(env, JNI_spectrogramBitmap, DecoderInterface::spectrogram_width, 2 * DecoderInterface::spectrogram_height))
+		return row;
+
+	void *spectrumPixels, *spectrogramPixels;
+	if (AndroidBitmap_lockPixels(env, JNI_spectrumBitmap, &spectrumPixels) != ANDROID_BITMAP_RESULT_SUCCESS)
 		goto spectrumFail;
-	spectrogramPixels = env->GetIntArrayElements(JNI_spectrogramPixels, nullptr);
-	if (!spectrogramPixels)
+	if (AndroidBitmap_lockPixels(env, JNI_spectrogramBitmap, &spectrogramPixels) != ANDROID_BITMAP_RESULT_SUCCESS)
 		goto spectrogramFail;
 
-	decoder->spectrum(
+	row = decoder->spectrum(
 		reinterpret_cast<uint32_t *>(spectrumPixels),
 		reinterpret_cast<uint32_t *>(spectrogramPixels),
 		spectrumTint);
 
-	env->ReleaseIntArrayElements(JNI_spectrogramPixels, spectrogramPixels, 0);
+	AndroidBitmap_unlockPixels(env, JNI_spectrogramBitmap);
 	spectrogramFail:
-	env->ReleaseIntArrayElements(JNI_spectrumPixels, spectrumPixels, 0);
-	spectrumFail:;
+	AndroidBitmap_unlockPixels(env, JNI_spectrumBitmap);
+	spectrumFail:
+
+	return row;
+}
+
+static void stopAudio() {
+	if (backend)
+		backend->stop();
+	delete backend;
+	backend = nullptr;
+	delete pipeline;
+	pipeline = nullptr;
+}
+
+// decodes an AAudio input stream, its data callback only fills the ring buffer of the pipeline
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_aicodix_rattlegram_MainActivity_startNativeAudio(
+	JNIEnv *,
+	jobject,
+	jint sampleRate,
+	jint channelSelect,
+	jint inputPreset) {
+	stopAudio();
+	if (!AAudioBackend::available())
+		return false;
+	pipeline = new(std::nothrow) AudioPipeline(decoderMutex, &decoder, sampleRate, channelSelect);
+	if (!pipeline)
+		return false;
+	backend = new(std::nothrow) AAudioBackend(sampleRate, pipeline->captureChannels(), 0, inputPreset);
+	if (!backend || !backend->start(pipeline)) {
+		stopAudio();
+		return false;
+	}
+	return true;
 }
 
+extern "C" JNIEXPORT void JNICALL
+Java_com_aicodix_rattlegram_MainActivity_stopNativeAudio(
+	JNIEnv *,
+	jobject) {
+	stopAudio();
+}
+
+// drains the decoder events into a direct ByteBuffer, returns -1 once the stream is gone
+extern "C" JNIEXPORT jint JNICALL
+Java_com_aicodix_rattlegram_MainActivity_pollNativeAudio(
+	JNIEnv *env,
+	jobject,
+	jobject JNI_events) {
+
+	if (!backend || !backend->running())
+		return -1;
+
+	auto events = reinterpret_cast<DecoderEvent *>(env->GetDirectBufferAddress(JNI_events));
+	jlong eventCount = env->GetDirectBufferCapacity(JNI_events) / (jlong) sizeof(DecoderEvent);
+	if (!events || eventCount <= 0)
+		return -1;
+
+	// the events wait in the decoder for the next poll while the worker holds it
+	std::unique_lock<std::mutex> lock(decoderMutex, std::try_to_lock);
+
+	if (!lock.owns_lock())
+		return 0;
+
+	if (!decoder)
+		return -1;
+
+	return decoder->poll(events, (int) eventCount);
+}
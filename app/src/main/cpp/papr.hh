@@ -8,6 +8,13 @@ Copyright 2021 Ahmet Inan <inan@aicodix.de>
 
 #include "fft.hh"
 
+/*
+Repeatedly clips the oversampled symbol to the given magnitude and filters
+the out of band distortion away again, by only keeping the carriers in use.
+The average power of the oversampled symbol is 1/fact. Every iteration
+lets less of the peaks grow back, but adds some more distortion to the
+carriers. Zero iterations leave the symbol alone.
+*/
 template<typename cmplx, int size, int fact>
 struct ImprovePAPR {
 	typedef typename cmplx::value_type value;
@@ -16,31 +23,33 @@ struct ImprovePAPR {
 	cmplx temp[fact * size], over[fact * size];
 	bool used[size];
 
-	void operator()(cmplx *freq) {
+	void operator()(cmplx *freq, int iterations = 1, value limit = 1) {
 		for (int i = 0; i < size; ++i)
 			used[i] = freq[i].real() || freq[i].imag();
-		for (int i = 0; i < size / 2; ++i)
-			over[i] = freq[i];
-		for (int i = size / 2; i < fact * size - size / 2; ++i)
-			over[i] = 0;
-		for (int i = size / 2; i < size; ++i)
-			over[size * (fact - 1) + i] = freq[i];
-		bwd(temp, over);
 		value factor = 1 / std::sqrt(value(fact * size));
-		for (int i = 0; i < fact * size; ++i)
-			temp[i] *= factor;
-		for (int i = 0; i < fact * size; ++i) {
-			value pwr = norm(temp[i]);
-			if (pwr > 1)
-				temp[i] /= std::sqrt(pwr);
+		for (int k = 0; k < iterations; ++k) {
+			for (int i = 0; i < size / 2; ++i)
+				over[i] = freq[i];
+			for (int i = size / 2; i < fact * size - size / 2; ++i)
+				over[i] = 0;
+			for (int i = size / 2; i < size; ++i)
+				over[size * (fact - 1) + i] = freq[i];
+			bwd(temp, over);
+			for (int i = 0; i < fact * size; ++i)
+				temp[i] *= factor;
+			for (int i = 0; i < fact * size; ++i) {
+				value pwr = norm(temp[i]);
+				if (pwr > limit * limit)
+					temp[i] *= limit / std::sqrt(pwr);
+			}
+			fwd(over, temp);
+			for (int i = 0; i < size / 2; ++i)
+				if (used[i])
+					freq[i] = factor * over[i];
+			for (int i = size / 2; i < size; ++i)
+				if (used[i])
+					freq[i] = factor * over[size * (fact - 1) + i];
 		}
-		fwd(over, temp);
-		for (int i = 0; i < size / 2; ++i)
-			if (used[i])
-				freq[i] = factor * over[i];
-		for (int i = size / 2; i < size; ++i)
-			if (used[i])
-				freq[i] = factor * over[size * (fact - 1) + i];
 	}
 };
 
@@ -52,23 +61,25 @@ struct ImprovePAPR<cmplx, size, 1> {
 	cmplx temp[size];
 	bool used[size];
 
-	void operator()(cmplx *freq) {
+	void operator()(cmplx *freq, int iterations = 1, value limit = 1) {
 		for (int i = 0; i < size; ++i)
 			used[i] = freq[i].real() || freq[i].imag();
-		bwd(temp, freq);
 		value factor = 1 / std::sqrt(value(size));
-		for (int i = 0; i < size; ++i)
-			temp[i] *= factor;
-		for (int i = 0; i < size; ++i) {
-			value pwr = norm(temp[i]);
-			if (pwr > 1)
-				temp[i] /= std::sqrt(pwr);
+		for (int k = 0; k < iterations; ++k) {
+			bwd(temp, freq);
+			for (int i = 0; i < size; ++i)
+				temp[i] *= factor;
+			for (int i = 0; i < size; ++i) {
+				value pwr = norm(temp[i]);
+				if (pwr > limit * limit)
+					temp[i] *= limit / std::sqrt(pwr);
+			}
+			fwd(freq, temp);
+			for (int i = 0; i < size; ++i)
+				if (used[i])
+					freq[i] *= factor;
+				else
+					freq[i] = 0;
 		}
-		fwd(freq, temp);
-		for (int i = 0; i < size; ++i)
-			if (used[i])
-				freq[i] *= factor;
-			else
-				freq[i] = 0;
 	}
 };
@@ -0,0 +1,44 @@
+/*
+Helpers for Q15 fixed-point samples
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+#pragma once
+
+#include <cstdint>
+#include "complex.hh"
+
+namespace DSP {
+
+typedef Complex<int16_t> ComplexQ15;
+
+inline int16_t saturate_q15(int64_t value)
+{
+	return value < -32768 ? -32768 : value > 32767 ? 32767 : value;
+}
+
+// rounds away the fractional bits of a fixed-point value before saturating
+inline int16_t round_q15(int64_t value, int shift)
+{
+	return saturate_q15((value + (int64_t(1) << (shift - 1))) >> shift);
+}
+
+// makes Q15 samples look like an array of floating-point ones, widened on access
+template <typename TYPE>
+class WidenQ15
+{
+	typedef typename TYPE::value_type value_type;
+	const ComplexQ15 *samples;
+public:
+	explicit WidenQ15(const ComplexQ15 *samples) : samples(samples)
+	{
+	}
+	TYPE operator [] (int i) const
+	{
+		return TYPE(samples[i].real(), samples[i].imag()) / value_type(32768);
+	}
+};
+
+}
+
@@ -0,0 +1,74 @@
+/*
+Polyphase rational resampler
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+#pragma once
+
+namespace DSP {
+
+template <typename COEFF, int UP, int TAPS>
+class PolyphaseCoeffs
+{
+	COEFF w[UP * TAPS];
+public:
+	/*
+	func(n, N) describes the prototype filter running at UP times the input rate.
+	Coefficients are stored per phase and in reverse, so every output is a plain
+	dot product over the contiguous history.
+	*/
+	template <typename FUNC>
+	PolyphaseCoeffs(FUNC func)
+	{
+		for (int p = 0; p < UP; ++p)
+			for (int k = 0; k < TAPS; ++k)
+				w[TAPS * p + TAPS - 1 - k] = func(p + UP * k, UP * TAPS);
+	}
+	inline operator const COEFF * () const { return w; }
+};
+
+template <typename TYPE, typename COEFF, int UP, int DOWN, int TAPS>
+class Resampler
+{
+	static_assert(UP > 0 && DOWN > 0, "UP and DOWN must be positive");
+	const COEFF *coeffs;
+	TYPE hist[2 * TAPS];
+	int pos, phase;
+public:
+	typedef decltype(TYPE() * COEFF()) output_type;
+	typedef PolyphaseCoeffs<COEFF, UP, TAPS> coeffs_type;
+	static const int max_output = (UP + DOWN - 1) / DOWN;
+	// the coefficients are only referenced, so many resamplers can share them
+	Resampler(const COEFF *coeffs) : coeffs(coeffs), pos(0), phase(0)
+	{
+		reset();
+	}
+	void reset()
+	{
+		for (int i = 0; i < 2 * TAPS; ++i)
+			hist[i] = 0;
+		pos = 0;
+		phase = 0;
+	}
+	int operator () (output_type *output, TYPE input)
+	{
+		hist[pos] = hist[pos + TAPS] = input;
+		if (++pos >= TAPS)
+			pos = 0;
+		const TYPE *win = hist + pos;
+		int count = 0;
+		for (; phase < UP; phase += DOWN) {
+			const COEFF *coef = coeffs + TAPS * phase;
+			output_type sum = win[0] * coef[0];
+			for (int k = 1; k < TAPS; ++k)
+				sum += win[k] * coef[k];
+			output[count++] = sum;
+		}
+		phase -= UP;
+		return count;
+	}
+};
+
+}
+
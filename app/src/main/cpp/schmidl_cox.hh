@@ -25,10 +25,12 @@ class SchmidlCox {
 	DSP::SchmittTrigger<value> threshold;
 	DSP::FallingEdgeTrigger falling;
 	cmplx tmp0[symbol_len], tmp1[symbol_len];
-	cmplx kern[symbol_len];
+	const cmplx *kern;
 	value timing_max = 0;
 	value phase_max = 0;
 	int index_max = 0;
+	int shift_first = 0;
+	int shift_count = symbol_len;
 
 	static int bin(int carrier) {
 		return (carrier + symbol_len) % symbol_len;
@@ -48,12 +50,40 @@ public:
 	value cfo_rad = 0;
 	value frac_cfo = 0;
 
-	SchmidlCox(const cmplx *sequence) : threshold(value(0.17 * match_len), value(0.19 * match_len)) {
-		fwd(kern, sequence);
+	// computes the matched filter for the sequence, which can be shared between correlators
+	static void kernel(cmplx *kern, const cmplx *sequence) {
+		DSP::FastFourierTransform<symbol_len, cmplx, -1> fft;
+		fft(kern, sequence);
 		for (int i = 0; i < symbol_len; ++i)
 			kern[i] = conj(kern[i]) / value(symbol_len);
 	}
 
+	explicit SchmidlCox(const cmplx *kernel) : kern(kernel) {
+		reset();
+	}
+
+	// forgets the peak it was collecting, the sums catch up with the samples by themselves
+	void reset() {
+		threshold = DSP::SchmittTrigger<value>(value(0.17 * match_len), value(0.19 * match_len));
+		falling = DSP::FallingEdgeTrigger();
+		timing_max = 0;
+		phase_max = 0;
+		index_max = 0;
+	}
+
+	/*
+	Only looks for the frequency offset between min_rad and max_rad.
+	The coarse offset comes in steps of a carrier spacing of the shorter
+	symbol, the fractional part moves it by up to half a step either way.
+	*/
+	void search(value min_rad, value max_rad) {
+		value step = Const::TwoPi() / symbol_len;
+		int first = std::ceil(min_rad / step - value(0.5));
+		int last = std::floor(max_rad / step + value(0.5));
+		shift_count = std::clamp(last - first + 1, 0, symbol_len);
+		shift_first = shift_count < symbol_len ? first : 0;
+	}
+
 	bool operator()(const cmplx *samples) {
 		cmplx P = cor(samples[search_pos + symbol_len] * conj(samples[search_pos + 2 * symbol_len]));
 		value R = value(0.5) * pwr(norm(samples[search_pos + 2 * symbol_len]));
@@ -79,13 +109,20 @@ public:
 		if (!process)
 			return false;
 
-		frac_cfo = phase_max / value(symbol_len);
+		int index = index_max;
+		index_max = 0;
+		timing_max = 0;
+		return synchronize(samples, phase_max, index);
+	}
+
+	// fine timing and frequency offset for a timing peak found index samples ago
+	template <typename SAMPLES>
+	bool synchronize(const SAMPLES &samples, value phase, int index) {
+		frac_cfo = phase / value(symbol_len);
 
 		DSP::Phasor<cmplx> osc;
 		osc.omega(frac_cfo);
-		symbol_pos = search_pos - index_max;
-		index_max = 0;
-		timing_max = 0;
+		symbol_pos = search_pos - index;
 		for (int i = 0; i < symbol_len; ++i)
 			tmp1[i] = samples[i + symbol_pos + symbol_len] * osc();
 		fwd(tmp0, tmp1);
@@ -103,7 +140,8 @@ public:
 		int shift = 0;
 		value peak = 0;
 		value next = 0;
-		for (int i = 0; i < symbol_len; ++i) {
+		for (int k = 0; k < shift_count; ++k) {
+			int i = bin(shift_first + k);
 			value power = norm(tmp1[i]);
 			if (power > peak) {
 				next = peak;
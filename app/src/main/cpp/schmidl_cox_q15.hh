@@ -0,0 +1,158 @@
+/*
+Fixed-point Schmidl & Cox timing metric
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+#pragma once
+
+#include "delay.hh"
+#include "trigger.hh"
+#include "q15.hh"
+#ifdef __ARM_NEON
+#include <arm_neon.h>
+#endif
+
+/*
+Finds the same timing peaks as SchmidlCox, but on Q15 samples.
+The correlation and power sums are kept as exact integer running sums,
+so unlike their floating-point counterparts they neither drift nor need
+a sliding window aggregator. The sample leaving a window is still in the
+buffer, so no delay lines are needed either. Only the normalization of
+the metric happens in floating-point, the phase is only computed when
+a new peak shows up. Fine timing and frequency offset are then left to
+SchmidlCox::synchronize.
+With NEON, the products entering and leaving the windows are computed
+and subtracted side by side, before they get widened into the sums.
+*/
+template<typename value, typename cmplx, int search_pos, int symbol_len, int guard_len>
+class SchmidlCoxQ15 {
+	static const int match_len = guard_len | 1;
+	static const int match_del = (match_len - 1) / 2;
+	// the timing metric never exceeds one, keep 16 fractional bits of it
+	static const int timing_one = 1 << 16;
+	DSP::Delay<cmplx, match_del> align;
+	DSP::SchmittTrigger<int64_t> threshold;
+	DSP::FallingEdgeTrigger falling;
+	int32_t match_hist[match_len];
+#ifdef __ARM_NEON
+	// real and imaginary part of the correlation, power of the real and imaginary parts
+	int64x2_t cor_sum = vdupq_n_s64(0), pwr_sum = vdupq_n_s64(0);
+#else
+	int64_t cor_re = 0, cor_im = 0, pwr = 0;
+#endif
+	int64_t match = 0;
+	int64_t timing_max = 0;
+	cmplx corr_max;
+	int match_pos = 0;
+	int index_max = 0;
+
+#ifdef __ARM_NEON
+	/*
+	A product of two Q15 values is at most 2^30 and at least -2^30 + 2^15,
+	so the difference of two of them still fits into 32 bits. Lanes of the
+	correlation are a.re*b.re, a.im*b.im, a.im*b.re and a.re*b.im minus the
+	same for c and d, the last one negated before the pairwise widening add.
+	Lanes of the power are b.re^2 and b.im^2 minus c.re^2 and c.im^2.
+	*/
+	void accumulate(DSP::ComplexQ15 a, DSP::ComplexQ15 b, DSP::ComplexQ15 c, DSP::ComplexQ15 d) {
+		int16x4_t ab_l = {a.real(), a.imag(), a.imag(), a.real()};
+		int16x4_t ab_r = {b.real(), b.imag(), b.real(), b.imag()};
+		int16x4_t cd_l = {c.real(), c.imag(), c.imag(), c.real()};
+		int16x4_t cd_r = {d.real(), d.imag(), d.real(), d.imag()};
+		int32x4_t cor = vmlsl_s16(vmull_s16(ab_l, ab_r), cd_l, cd_r);
+		const int32x4_t sign = {1, 1, 1, -1};
+		cor_sum = vpadalq_s32(cor_sum, vmulq_s32(cor, sign));
+		int16x4_t bc = {b.real(), b.imag(), c.real(), c.imag()};
+		int32x4_t squares = vmull_s16(bc, bc);
+		pwr_sum = vaddw_s32(pwr_sum, vsub_s32(vget_low_s32(squares), vget_high_s32(squares)));
+	}
+
+	cmplx correlation() const {
+		return cmplx(vgetq_lane_s64(cor_sum, 0), vgetq_lane_s64(cor_sum, 1));
+	}
+
+	int64_t power() const {
+		return vgetq_lane_s64(pwr_sum, 0) + vgetq_lane_s64(pwr_sum, 1);
+	}
+#else
+	static int64_t power(DSP::ComplexQ15 a) {
+		return int64_t(a.real()) * a.real() + int64_t(a.imag()) * a.imag();
+	}
+
+	void accumulate(DSP::ComplexQ15 a, DSP::ComplexQ15 b, DSP::ComplexQ15 c, DSP::ComplexQ15 d) {
+		cor_re += int64_t(a.real()) * b.real() + int64_t(a.imag()) * b.imag();
+		cor_im += int64_t(a.imag()) * b.real() - int64_t(a.real()) * b.imag();
+		cor_re -= int64_t(c.real()) * d.real() + int64_t(c.imag()) * d.imag();
+		cor_im -= int64_t(c.imag()) * d.real() - int64_t(c.real()) * d.imag();
+		pwr += power(b) - power(c);
+	}
+
+	cmplx correlation() const {
+		return cmplx(cor_re, cor_im);
+	}
+
+	int64_t power() const {
+		return pwr;
+	}
+#endif
+
+public:
+	value phase = 0;
+	int index = 0;
+
+	SchmidlCoxQ15() {
+		for (int i = 0; i < match_len; ++i)
+			match_hist[i] = 0;
+		reset();
+	}
+
+	// forgets the peak it was collecting, the sums are tied to the buffer and stay
+	void reset() {
+		threshold = DSP::SchmittTrigger<int64_t>(int64_t(0.17 * match_len * timing_one), int64_t(0.19 * match_len * timing_one));
+		falling = DSP::FallingEdgeTrigger();
+		timing_max = 0;
+		index_max = 0;
+	}
+
+	bool operator()(const DSP::ComplexQ15 *samples) {
+		DSP::ComplexQ15 a = samples[search_pos + symbol_len], b = samples[search_pos + 2 * symbol_len];
+		DSP::ComplexQ15 c = samples[search_pos], d = samples[search_pos + symbol_len];
+		accumulate(a, b, c, d);
+
+		cmplx P = correlation();
+		value R = value(0.5) * value(power());
+		value min_R = value(0.00001 * symbol_len * 32768 * 32768);
+		R = std::max(R, min_R);
+		int32_t timing = norm(P) / (R * R) * timing_one;
+		match += timing - match_hist[match_pos];
+		match_hist[match_pos] = timing;
+		if (++match_pos >= match_len)
+			match_pos = 0;
+		cmplx delayed = align(P);
+
+		bool collect = threshold(match);
+		bool process = falling(collect);
+
+		if (!collect && !process)
+			return false;
+
+		if (timing_max < match) {
+			timing_max = match;
+			corr_max = delayed;
+			index_max = match_del;
+		} else if (index_max < symbol_len + guard_len + match_del) {
+			++index_max;
+		}
+
+		if (!process)
+			return false;
+
+		phase = arg(corr_max);
+		index = index_max;
+		index_max = 0;
+		timing_max = 0;
+		return true;
+	}
+};
+
@@ -0,0 +1,65 @@
+/*
+Complex sub-band filter
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+#pragma once
+
+#include "filter.hh"
+#include "window.hh"
+#include "phasor.hh"
+
+namespace DSP {
+
+/*
+Mixes the sub-band around the given center frequency down to zero and
+keeps only its bandwidth with a linear phase low-pass filter.
+Frequencies are given as fractions of the sampling rate and the output
+lags the input by "delay" samples.
+*/
+template <typename TYPE, int TAPS>
+class SubBand
+{
+	static_assert(TAPS & 1, "TAPS not odd");
+	typedef TYPE complex_type;
+	typedef typename TYPE::value_type value_type;
+	static const int CENTER = (TAPS-1)/2;
+	complex_type hist[2*TAPS];
+	value_type coef[CENTER+1];
+	Phasor<complex_type> osc;
+	int pos;
+public:
+	static const int delay = CENTER;
+
+	SubBand() : pos(0)
+	{
+		for (int i = 0; i < 2*TAPS; ++i)
+			hist[i] = 0;
+		for (int i = 0; i <= CENTER; ++i)
+			coef[i] = 0;
+	}
+	void setup(value_type center, value_type bandwidth, value_type a = value_type(2))
+	{
+		Kaiser<value_type> win(a);
+		LowPass<value_type> low(bandwidth / 2);
+		for (int i = 0; i <= CENTER; ++i)
+			coef[i] = win(CENTER+i, TAPS) * low(CENTER+i, TAPS);
+		osc.freq(-center);
+		osc.reset();
+	}
+	complex_type operator()(complex_type input)
+	{
+		hist[pos] = hist[pos+TAPS] = input * osc();
+		if (++pos >= TAPS)
+			pos = 0;
+		const complex_type *h = hist + pos;
+		complex_type sum = coef[0] * h[CENTER];
+		for (int i = 1; i <= CENTER; ++i)
+			sum += coef[i] * (h[CENTER-i] + h[CENTER+i]);
+		return sum;
+	}
+};
+
+}
+
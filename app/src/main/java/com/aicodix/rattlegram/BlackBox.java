@@ -0,0 +1,147 @@
+/*
+Baseband black box recorder
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+package com.aicodix.rattlegram;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/*
+Dumps are filled on the UI thread, as the decoder events come in, and
+written by a thread of their own. Buffers are allocated up front and
+handed back and forth through two queues, so the event handling never
+allocates and never waits: if the writer is still busy with every buffer,
+the dump is simply dropped. The header gets written at the trigger, the
+samples once the decoder froze its history SAMPLES_AFTER after the
+triggering event, so the dump covers the rest of the burst as well, no
+matter how late the event arrived here. Only create one while recording
+is enabled.
+
+File layout, native byte order:
+ 0: magic "RGBB", version, sample rate, sample count
+16: status, mode, result, CFO in Hz as float
+32: position in samples from the end, precision in dB as float, time in ms as long
+48: call sign, 16 bytes
+64: sample count interleaved I/Q pairs of int16
+*/
+public class BlackBox implements Runnable {
+	public static final int HEADER_SIZE = 64;
+	public static final int SAMPLE_RATE = 8000;
+	public static final int SAMPLE_COUNT = 4 * SAMPLE_RATE;
+	public static final int SAMPLES_AFTER = SAMPLE_COUNT / 2;
+	private static final int MAGIC = 0x42424752;
+	private static final int VERSION = 1;
+	private static final int BUFFER_COUNT = 2;
+	private final ArrayBlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BUFFER_COUNT);
+	private final ArrayBlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(BUFFER_COUNT);
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.US);
+	private final File directory;
+	private final long capacity;
+	private final Thread thread;
+
+	public BlackBox(File directory, long capacity) {
+		this.directory = directory;
+		this.capacity = capacity;
+		for (int i = 0; i < BUFFER_COUNT; ++i)
+			free.add(ByteBuffer.allocateDirect(HEADER_SIZE + 4 * SAMPLE_COUNT).order(ByteOrder.nativeOrder()));
+		thread = new Thread(this, "BlackBox");
+		thread.start();
+	}
+
+	// returns null if all buffers are still waiting to be written
+	public ByteBuffer acquire() {
+		return free.poll();
+	}
+
+	public void release(ByteBuffer buffer) {
+		free.offer(buffer);
+	}
+
+	// position counts from the trigger, the decoder recorded exactly SAMPLES_AFTER more before freezing
+	public void header(ByteBuffer buffer, int status, int mode, int result, float cfo, int position, float precision, byte[] call) {
+		buffer.clear();
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putInt(8, SAMPLE_RATE);
+		buffer.putInt(16, status);
+		buffer.putInt(20, mode);
+		buffer.putInt(24, result);
+		buffer.putFloat(28, cfo);
+		buffer.putInt(32, position + SAMPLES_AFTER);
+		buffer.putFloat(36, precision);
+		buffer.putLong(40, System.currentTimeMillis());
+		for (int i = 0; i < 16; ++i)
+			buffer.put(48 + i, i < call.length ? call[i] : 0);
+	}
+
+	public void submit(ByteBuffer buffer, int count) {
+		buffer.putInt(12, count);
+		buffer.limit(HEADER_SIZE + 4 * count);
+		full.offer(buffer);
+	}
+
+	public void shutdown() {
+		thread.interrupt();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				ByteBuffer buffer = full.take();
+				write(buffer);
+				release(buffer);
+			}
+		} catch (InterruptedException ignored) {
+		}
+	}
+
+	// a counter keeps dumps of the same millisecond apart
+	private File create(long time) throws IOException {
+		String stamp = dateFormat.format(new Date(time));
+		for (int i = 0; ; ++i) {
+			File file = new File(directory, String.format(Locale.US, "blackbox-%s-%02d.iq", stamp, i));
+			if (file.createNewFile())
+				return file;
+		}
+	}
+
+	private void write(ByteBuffer buffer) {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			return;
+		try (FileOutputStream stream = new FileOutputStream(create(buffer.getLong(40)))) {
+			FileChannel channel = stream.getChannel();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		} catch (IOException ignored) {
+		}
+		trim();
+	}
+
+	// deletes the oldest dumps until we are below capacity again
+	private void trim() {
+		File[] files = directory.listFiles((dir, name) -> name.startsWith("blackbox-"));
+		if (files == null)
+			return;
+		Arrays.sort(files);
+		long total = 0;
+		for (File file : files)
+			total += file.length();
+		for (int i = 0; i < files.length && total > capacity; ++i) {
+			total -= files[i].length();
+			files[i].delete();
+		}
+	}
+}
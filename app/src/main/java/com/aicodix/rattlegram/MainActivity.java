@@ -18,18 +18,24 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
 import android.media.MediaRecorder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.text.Editable;
 import android.text.InputType;
 import android.text.TextWatcher;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -42,25 +48,22 @@ import android.widget.Toast;
 
 import com.aicodix.rattlegram.databinding.ActivityMainBinding;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
-import java.security.SecureRandom;
-import java.security.spec.KeySpec;
-import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-
-import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.SecretKeySpec;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -73,30 +76,71 @@ public class MainActivity extends AppCompatActivity {
 	private final int audioFormat = AudioFormat.ENCODING_PCM_16BIT;
 	private final int sampleSize = 2;
 	private TextView status;
-	private AudioRecord audioRecord;
+	private Capture capture;
 	private AudioTrack audioTrack;
 	private int noiseSymbols;
+	private int paprEffort;
+	private int frameGap;
+	private int metricsInterval;
+	private int blackBoxTriggers;
+	private BlackBox blackBox;
+	// header written, waiting for the samples after the trigger
+	private ByteBuffer blackBoxDump;
+	private boolean showSpectrum;
+	private boolean spectrumPending;
+	private boolean nativeAudio;
+	private boolean fixedPoint;
+	private boolean multiCarrier;
+	private boolean bandRestricted;
+	private SpectrumView spectrumView;
+	private Bitmap spectrumBitmap;
+	private Bitmap spectrogramBitmap;
 	private int recordRate;
 	private int outputRate;
 	private int recordChannel;
 	private int outputChannel;
 	private int audioSource;
 	private int carrierFrequency;
-	private int recordCount;
-	private short[] recordBuffer;
-	private short[] outputBuffer;
 	private Menu menu;
 	private Handler handler;
+	// the recorder is read and the decoder fed here, the events go back to the UI thread
+	private HandlerThread audioThread;
+	private Handler audioHandler;
+	private ByteBuffer recordEvents;
 	private Runnable statusTimer;
 	private String prevStatus;
+	private ByteBuffer decoderEvents;
+	private byte[] eventCall;
 	private byte[] payload;
+	// the segments of the long bursts, null where decoding failed
+	private final HashMap<String, byte[][]> longBursts = new HashMap<>();
 	private ArrayAdapter<String> messages;
-	private float[] stagedCFO;
-	private int[] stagedMode;
-	private byte[] stagedCall;
 	private String callSign;
 	private String draftText;
+	// only touched on the UI thread, the encoder thread gets handed the cipher
 	private String password;
+	private MessageCipher cipher;
+	private MessageLog messageLog;
+	private ExecutorService encoderThread;
+	private ExecutorService decoderThread;
+	private ExecutorService logThread;
+	private int decoderRate;
+	private boolean resumed;
+	private final ArrayDeque<Burst> transmitQueue = new ArrayDeque<>();
+	// the AudioTrack keeps its own copy, so the buffers go back to the encoder thread once written
+	private final ArrayBlockingQueue<short[]> burstBuffers = new ArrayBlockingQueue<>(2);
+	private int pendingBursts;
+	private boolean frameGapActive;
+	private Runnable metricsTimer;
+	private int[] metricsValues;
+	private final AtomicInteger readShortfalls = new AtomicInteger();
+	private final AtomicInteger lateNotifications = new AtomicInteger();
+	private final AtomicInteger recordOverruns = new AtomicInteger();
+	// grow with every overrun, the periods on the audio thread
+	private volatile int recordPeriods = 1;
+	private int recordBufferScale = 1;
+	private static final int MAX_RECORD_PERIODS = 8;
+	private static final int MAX_RECORD_BUFFER_SCALE = 2;
 	// IV (16) + length (1) + data (variable), limited to 170 bytes
 	private final int MAX_MESSAGE_SIZE_AES = (int) Math.floor(170.f / 16.f) * 16;
 	private final int MAX_CHARACTERS = MAX_MESSAGE_SIZE_AES - (16 + 1);
@@ -109,6 +153,7 @@ public class MainActivity extends AppCompatActivity {
 		builder.setView(view);
 		builder.setPositiveButton(R.string.okay, (dialog, which) -> {
 			this.password = passwordText.getText().toString();
+			cipher = new MessageCipher(password);
 			storeSettings();
 			addString(getString(R.string.password_changed));
 		});
@@ -116,192 +161,485 @@ public class MainActivity extends AppCompatActivity {
 		builder.show();
 	}
 
-	private IvParameterSpec generateIv() {
-		byte[] iv = new byte[16];
-		new SecureRandom().nextBytes(iv);
-		return new IvParameterSpec(iv);
-	}
-
-	private SecretKey getKeyDerivation(String text) throws Exception {
-		SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-		KeySpec spec = new PBEKeySpec(text.toCharArray(), text.getBytes(), 2048, 256);
-		return new SecretKeySpec(factory.generateSecret(spec).getEncoded(), "AES");
-	}
+	private native boolean createEncoder(int sampleRate);
 
-	private byte[] encryptText(String text) throws Exception {
-		IvParameterSpec iv = generateIv();
-		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5PADDING");
-		cipher.init(Cipher.ENCRYPT_MODE, getKeyDerivation(password), iv);
-		byte[] finalBytes = cipher.doFinal(text.getBytes(StandardCharsets.UTF_8));
+	private native void effortEncoder(int effort);
 
-		ByteArrayOutputStream output = new ByteArrayOutputStream();
-		output.write(iv.getIV());
-		output.write((byte) finalBytes.length);
-		output.write(finalBytes);
-		return output.toByteArray();
-	}
+	private native float paprEncoder();
 
-	// InputStream.readNBytes requires API level 33
-	private byte[] readN(InputStream input, int n) throws Exception {
-		byte[] temp = new byte[n];
-		if (input.read(temp) != n)
-			throw new Exception("Invalid data");
-		return temp;
-	}
+	private native void configureEncoder(byte[] payload, byte[] callSign, int carrierFrequency, int noiseSymbols, boolean fancyHeader);
 
-	private byte[] decryptText(byte[] data) throws Exception {
-		ByteArrayInputStream input = new ByteArrayInputStream(data);
-		IvParameterSpec iv = new IvParameterSpec(readN(input, 16));
-		int length = input.read();
+	private native int lengthEncoder();
 
-		// AES/CBC/PKCS5PADDING is expected to be 16-byte aligned
-		if (length <= 0 || length % 16 != 0)
-			throw new Exception("Invalid length");
+	private native int renderEncoder(short[] audioBuffer, int channelSelect);
 
-		data = readN(input, length);
+	private native void destroyEncoder();
 
-		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5PADDING");
-		cipher.init(Cipher.DECRYPT_MODE, getKeyDerivation(password), iv);
-		return cipher.doFinal(data);
+	private static class Burst {
+		final short[] audioBuffer;
+		final int frameCount;
+		final int sampleRate;
+		final int channelSelect;
+		final float papr;
+
+		Burst(short[] audioBuffer, int frameCount, int sampleRate, int channelSelect, float papr) {
+			this.audioBuffer = audioBuffer;
+			this.frameCount = frameCount;
+			this.sampleRate = sampleRate;
+			this.channelSelect = channelSelect;
+			this.papr = papr;
+		}
 	}
 
-	private native boolean createEncoder(int sampleRate);
-
-	private native void configureEncoder(byte[] payload, byte[] callSign, int carrierFrequency, int noiseSymbols, boolean fancyHeader);
-
-	private native boolean produceEncoder(short[] audioBuffer, int channelSelect);
-
-	private native void destroyEncoder();
-
 	private final AudioTrack.OnPlaybackPositionUpdateListener outputListener = new AudioTrack.OnPlaybackPositionUpdateListener() {
 		@Override
 		public void onMarkerReached(AudioTrack ignore) {
-
+			releaseAudioTrack();
+			frameGapActive = true;
+			handler.postDelayed(() -> {
+				frameGapActive = false;
+				transmitNext();
+			}, frameGap);
 		}
 
 		@Override
-		public void onPeriodicNotification(AudioTrack audioTrack) {
-			if (produceEncoder(outputBuffer, outputChannel)) {
-				audioTrack.write(outputBuffer, 0, outputBuffer.length);
-			} else {
-				audioTrack.stop();
-				handler.postDelayed(() -> startListening(), 1000);
-			}
+		public void onPeriodicNotification(AudioTrack ignore) {
+
 		}
 	};
 
-	private void initAudioTrack() {
-		if (audioTrack != null) {
-			boolean rateChanged = audioTrack.getSampleRate() != outputRate;
-			boolean channelChanged = audioTrack.getChannelCount() != (outputChannel == 0 ? 1 : 2);
-			if (!rateChanged && !channelChanged)
-				return;
-			audioTrack.stop();
-			audioTrack.release();
-		}
+	// the encoder is only ever touched from the encoder thread
+	private void initEncoder() {
+		int sampleRate = outputRate;
+		encoderThread.execute(() -> {
+			if (!createEncoder(sampleRate))
+				handler.post(() -> setStatus(getString(R.string.heap_error)));
+		});
+	}
+
+	private boolean isTransmitting() {
+		return audioTrack != null || frameGapActive || pendingBursts > 0 || !transmitQueue.isEmpty();
+	}
+
+	private void releaseAudioTrack() {
+		if (audioTrack == null)
+			return;
+		audioTrack.stop();
+		audioTrack.release();
+		audioTrack = null;
+	}
+
+	// the whole burst is rendered up front, so playback no longer depends on callbacks
+	private boolean playBurst(Burst burst) {
+		releaseAudioTrack();
 		int channelConfig = AudioFormat.CHANNEL_OUT_MONO;
 		int channelCount = 1;
-		if (outputChannel != 0) {
+		if (burst.channelSelect != 0) {
 			channelCount = 2;
 			channelConfig = AudioFormat.CHANNEL_OUT_STEREO;
 		}
-		int symbolLength = (1280 * outputRate) / 8000;
-		int guardLength = symbolLength / 8;
-		int extendedLength = symbolLength + guardLength;
-		int bufferSize = 5 * extendedLength * sampleSize * channelCount;
-		audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, outputRate, channelConfig, audioFormat, bufferSize, AudioTrack.MODE_STREAM);
-		outputBuffer = new short[extendedLength * channelCount];
+		int sampleCount = burst.frameCount * channelCount;
+		int bufferSize = sampleCount * sampleSize;
+		try {
+			audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, burst.sampleRate, channelConfig, audioFormat, bufferSize, AudioTrack.MODE_STATIC);
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		if (audioTrack.write(burst.audioBuffer, 0, sampleCount) != sampleCount) {
+			releaseAudioTrack();
+			return false;
+		}
 		audioTrack.setPlaybackPositionUpdateListener(outputListener);
-		audioTrack.setPositionNotificationPeriod(extendedLength);
-		if (!createEncoder(outputRate))
-			setStatus(getString(R.string.heap_error));
+		audioTrack.setNotificationMarkerPosition(burst.frameCount);
+		audioTrack.play();
+		return true;
 	}
 
-	private native boolean feedDecoder(short[] audioBuffer, int sampleCount, int channelSelect);
+	// plays the next rendered burst, or goes back to listening once the queue ran dry
+	private void transmitNext() {
+		if (audioTrack != null || frameGapActive)
+			return;
+		Burst burst = transmitQueue.poll();
+		if (burst == null) {
+			if (pendingBursts == 0)
+				startListening();
+			return;
+		}
+		boolean played = playBurst(burst);
+		burstBuffers.offer(burst.audioBuffer);
+		if (played) {
+			setStatus(getString(R.string.transmitting_papr, burst.papr));
+		} else {
+			setStatus(getString(R.string.audio_init_failed));
+			transmitNext();
+		}
+	}
+
+	private native int feedDecoder(short[] audioBuffer, int sampleCount, int channelSelect, ByteBuffer events);
+
+	private native void lostDecoder(int sampleCount);
+
+	private native int spectrumDecoder(Bitmap spectrumBitmap, Bitmap spectrogramBitmap, int spectrumTint);
+
+	private native void enableMetrics(boolean enable);
+
+	private native void enableBlackBox(int triggers, int samplesAfter);
+
+	private native void enableFixedPoint(boolean enable);
+
+	private native void enableMultiCarrier(boolean enable);
 
-	private native int processDecoder();
+	private native void setCarrierRange(int minFrequency, int maxFrequency);
 
-	private native void stagedDecoder(float[] carrierFrequencyOffset, int[] operationMode, byte[] callSign);
+	private native int dumpBlackBox(ByteBuffer dump, int headerSize);
 
-	private native int fetchDecoder(byte[] payload);
+	private native void discardBlackBox();
 
-	private native boolean createDecoder(int sampleRate);
+	private native int readMetrics(int[] values);
+
+	private native long createDecoder(int sampleRate);
+
+	private native void installDecoder(long decoder);
+
+	private native void deleteDecoder(long decoder);
 
 	private native void destroyDecoder();
 
-	private final AudioRecord.OnRecordPositionUpdateListener recordListener = new AudioRecord.OnRecordPositionUpdateListener() {
+	private native boolean startNativeAudio(int sampleRate, int channelSelect, int inputPreset);
+
+	private native void stopNativeAudio();
+
+	private native int pollNativeAudio(ByteBuffer events);
+
+	/*
+	An AudioRecord together with what the audio thread needs to read it.
+	Everything it was created with stays as it is, so a notification still
+	on its way when the UI thread replaces the recorder only ever sees the
+	buffer and sizes of the recorder it belongs to. The rest is only
+	touched on the audio thread.
+	*/
+	private class Capture implements AudioRecord.OnRecordPositionUpdateListener {
+		final AudioRecord audioRecord;
+		final int sampleRate, channelSelect, channelCount, period, capacity;
+		final short[] buffer;
+		private final AudioTimestamp timestamp = new AudioTimestamp();
+		private long lastNotification;
+		// frames read since recording started and the capture position they count from
+		private long frames;
+		private long origin;
+
+		Capture(AudioRecord audioRecord, int channelSelect, int capacity) {
+			this.audioRecord = audioRecord;
+			this.sampleRate = audioRecord.getSampleRate();
+			this.channelSelect = channelSelect;
+			this.channelCount = channelSelect == 0 ? 1 : 2;
+			this.period = sampleRate / 50;
+			this.capacity = capacity;
+			buffer = new short[period * channelCount];
+		}
+
+		// runs on the audio thread ahead of the first notification
+		void start() {
+			audioRecord.read(buffer, 0, buffer.length);
+			lastNotification = 0;
+			frames = 0;
+			origin = -1;
+		}
+
 		@Override
 		public void onMarkerReached(AudioRecord ignore) {
 
 		}
 
+		/*
+		Late notifications leave more than one period waiting, so we read
+		everything the capture position says is there. Once that is more than
+		the buffer holds, what is in the buffer came before the frames that
+		got lost, and the decoder hears about the gap after it got those.
+		This runs on the audio thread, so the reads may block without
+		stalling the UI, which only gets to see the events.
+		*/
 		@Override
-		public void onPeriodicNotification(AudioRecord audioRecord) {
-			audioRecord.read(recordBuffer, 0, recordBuffer.length);
-			if (!feedDecoder(recordBuffer, recordCount, recordChannel))
-				return;
-			int status = processDecoder();
-			final int STATUS_OKAY = 0;
-			final int STATUS_FAIL = 1;
-			final int STATUS_SYNC = 2;
-			final int STATUS_DONE = 3;
-			final int STATUS_HEAP = 4;
-			final int STATUS_NOPE = 5;
-			// final int STATUS_PING = 6;
-			switch (status) {
-				case STATUS_OKAY:
-					break;
-				case STATUS_FAIL:
-					setStatus(getString(R.string.preamble_fail), true);
-					break;
-				case STATUS_NOPE:
-					stagedDecoder(stagedCFO, stagedMode, stagedCall);
-					fromStatus();
-					addLine(new String(stagedCall).trim(), getString(R.string.preamble_nope, stagedMode[0]));
-					break;
-				/* ping is encrypted as well
-				case STATUS_PING:
-					stagedDecoder(stagedCFO, stagedMode, stagedCall);
-					fromStatus();
-					addLine(new String(stagedCall).trim(), getString(R.string.preamble_ping));
-					break;
-				 */
-				case STATUS_HEAP:
-					setStatus(getString(R.string.heap_error));
+		public void onPeriodicNotification(AudioRecord ignore) {
+			long now = SystemClock.elapsedRealtime();
+			if (lastNotification != 0 && now - lastNotification > (2000L * recordPeriods * period) / sampleRate)
+				lateNotifications.incrementAndGet();
+			lastNotification = now;
+			long backlog = backlog();
+			long periods = Math.max(recordPeriods, Math.min(backlog, capacity) / period);
+			for (long i = 0; i < periods; ++i) {
+				int read = audioRecord.read(buffer, 0, buffer.length);
+				if (read < buffer.length)
+					readShortfalls.incrementAndGet();
+				if (read <= 0)
+					return;
+				frames += read / channelCount;
+				int eventCount = feedDecoder(buffer, read / channelCount, channelSelect, recordEvents);
+				if (eventCount < 0) {
+					handler.post(() -> setStatus(getString(R.string.heap_error)));
 					audioRecord.stop();
+					return;
+				}
+				if (eventCount > 0) {
+					ByteBuffer events = copyEvents(recordEvents, eventCount);
+					handler.post(() -> handleEvents(events, eventCount));
+				}
+			}
+			handler.post(recordArrived);
+			if (backlog > capacity) {
+				long lost = backlog - capacity;
+				lostDecoder((int) Math.min(lost, Integer.MAX_VALUE));
+				frames += lost;
+				overrun();
+			}
+		}
+
+		// frames captured but not read yet, or zero where the platform can not tell
+		private long backlog() {
+			if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N)
+				return 0;
+			if (audioRecord.getTimestamp(timestamp, AudioTimestamp.TIMEBASE_MONOTONIC) != AudioRecord.SUCCESS)
+				return 0;
+			// the first notification finds one period waiting
+			if (origin < 0)
+				origin = timestamp.framePosition - frames - (long) recordPeriods * period;
+			return Math.max(0, timestamp.framePosition - origin - frames);
+		}
+
+		/*
+		Fewer and larger reads leave the audio thread more room right away,
+		while the larger buffer has to wait until we start listening again, as
+		replacing the AudioRecord now would cut into the bursts in flight.
+		*/
+		private void overrun() {
+			recordOverruns.incrementAndGet();
+			if (recordPeriods < MAX_RECORD_PERIODS) {
+				recordPeriods *= 2;
+				audioRecord.setPositionNotificationPeriod(recordPeriods * period);
+			}
+			handler.post(() -> {
+				if (recordBufferScale < MAX_RECORD_BUFFER_SCALE)
+					recordBufferScale *= 2;
+			});
+		}
+	}
+
+	// the spectrum and the black box wait for new audio, even when it brought no events
+	private final Runnable recordArrived = () -> handleEvents(decoderEvents, 0);
+
+	// the events buffer gets filled again by the next read, so the UI thread gets its own
+	private static ByteBuffer copyEvents(ByteBuffer events, int eventCount) {
+		ByteBuffer source = events.duplicate();
+		source.clear();
+		source.limit(eventCount * EVENT_SIZE);
+		ByteBuffer copy = ByteBuffer.allocate(eventCount * EVENT_SIZE).order(ByteOrder.nativeOrder());
+		copy.put(source);
+		return copy;
+	}
+
+	private int recordBufferFrames() {
+		return 2 * recordBufferScale * Integer.highestOneBit(3 * recordRate);
+	}
+
+	// the pipeline decodes what AAudio captured on a thread of its own, we only collect what came out of it
+	private static final int NATIVE_AUDIO_POLL = 20;
+
+	private final Runnable nativeAudioTimer = new Runnable() {
+		@Override
+		public void run() {
+			int eventCount = pollNativeAudio(decoderEvents);
+			if (eventCount < 0) {
+				stopNativeAudio();
+				setStatus(getString(R.string.audio_recording_error));
+				return;
+			}
+			handleEvents(decoderEvents, eventCount);
+			handler.postDelayed(this, NATIVE_AUDIO_POLL);
+		}
+	};
+
+	private void handleEvents(ByteBuffer events, int eventCount) {
+		for (int i = 0; i < eventCount; ++i)
+			handleEvent(events, i * EVENT_SIZE);
+		completeBlackBox();
+		if (showSpectrum && !spectrumPending) {
+			spectrumPending = true;
+			Choreographer.getInstance().postFrameCallback(spectrumCallback);
+		}
+	}
+
+	// redraw at most once per display frame and only after new audio arrived
+	private final Choreographer.FrameCallback spectrumCallback = frameTimeNanos -> {
+		spectrumPending = false;
+		if (!showSpectrum)
+			return;
+		int row = spectrumDecoder(spectrumBitmap, spectrogramBitmap, ContextCompat.getColor(this, R.color.tint));
+		if (row >= 0)
+			spectrumView.setRow(row);
+	};
+
+	// keep in sync with struct DecoderEvent in decoder.hh
+	private static final int EVENT_SIZE = 216;
+	private static final int EVENT_COUNT = 16;
+
+	private void handleEvent(ByteBuffer events, int offset) {
+		final int STATUS_FAIL = 1;
+		final int STATUS_SYNC = 2;
+		final int STATUS_DONE = 3;
+		final int STATUS_NOPE = 5;
+		// final int STATUS_PING = 6;
+		int status = events.getInt(offset);
+		int mode = events.getInt(offset + 4);
+		int result = events.getInt(offset + 8);
+		float cfo = events.getFloat(offset + 12);
+		int position = events.getInt(offset + 16);
+		float precision = events.getFloat(offset + 20);
+		int segment = events.getInt(offset + 208);
+		int segments = events.getInt(offset + 212);
+		events.position(offset + 24);
+		events.get(eventCall);
+		String call = new String(eventCall).trim();
+		switch (status) {
+			case STATUS_FAIL:
+				recordBlackBox(BLACK_BOX_FAIL, status, mode, result, cfo, position, precision);
+				setStatus(getString(R.string.preamble_fail), true);
+				break;
+			case STATUS_NOPE:
+				recordBlackBox(BLACK_BOX_NOPE, status, mode, result, cfo, position, precision);
+				fromStatus(call, mode, cfo);
+				addLine(call, getString(R.string.preamble_nope, mode));
+				break;
+			/* ping is encrypted as well
+			case STATUS_PING:
+				fromStatus(call, mode, cfo);
+				addLine(call, getString(R.string.preamble_ping));
+				break;
+			 */
+			case STATUS_SYNC:
+				fromStatus(call, mode, cfo);
+				break;
+			case STATUS_DONE:
+				if (result < 0) {
+					recordBlackBox(BLACK_BOX_DECODE, status, mode, result, cfo, position, precision);
+					addLine(call, getString(R.string.decoding_failed));
+				} else {
+					setStatus(getResources().getQuantityString(R.plurals.bits_flipped, result, result), true);
+					events.position(offset + 36);
+					events.get(payload);
+				}
+				byte[] received = payload;
+				if (segments > 1) {
+					byte[][] joined = longBursts.get(call);
+					if (segment == 0 || joined == null || joined.length != segments) {
+						joined = new byte[segments][];
+						longBursts.put(call, joined);
+					}
+					if (result >= 0)
+						joined[segment] = payload.clone();
+					if (segment < segments - 1)
+						break;
+					longBursts.remove(call);
+					received = joinSegments(joined);
+					if (received == null) {
+						// a failed segment does not throw away the ones around it
+						String partial = partialSegments(joined);
+						if (partial != null)
+							addMessage(call, getString(R.string.received_incomplete), partial);
+						break;
+					}
+				} else if (result < 0) {
 					break;
-				case STATUS_SYNC:
-					stagedDecoder(stagedCFO, stagedMode, stagedCall);
-					fromStatus();
-					break;
-				case STATUS_DONE:
-					int result = fetchDecoder(payload);
-					if (result < 0) {
-						addLine(new String(stagedCall).trim(), getString(R.string.decoding_failed));
+				}
+				try {
+					// make sure NOT to overwrite the previous "payload", because doing so
+					// will cause the size of "payload" to be different than expected
+					byte[] newPayload = cipher.decrypt(received);
+					if (newPayload.length > 0) {
+						// show the decrypted message
+						addMessage(call, getString(R.string.received), new String(newPayload).trim());
 					} else {
-						setStatus(getResources().getQuantityString(R.plurals.bits_flipped, result, result), true);
-						try {
-							// make sure NOT to overwrite the previous "payload", because doing so
-							// will cause the size of "payload" to be different than expected
-							byte[] newPayload = decryptText(payload);
-							if (newPayload.length > 0) {
-								// show the decrypted message
-								addMessage(new String(stagedCall).trim(), getString(R.string.received), new String(newPayload).trim());
-							} else {
-								// empty is a ping
-								addLine(new String(stagedCall).trim(), getString(R.string.preamble_ping));
-							}
-						} catch (Exception e) {
-							// show the original message even if decryption fails (maybe it wasn't encrypted)
-							// TODO: add a way to decrypt it with another password?
-							addMessage(new String(stagedCall).trim(), getString(R.string.received_decrypt_failed), new String(payload).trim());
-							return;
-						}
+						// empty is a ping
+						addLine(call, getString(R.string.preamble_ping));
 					}
-					break;
+				} catch (Exception e) {
+					// show the original message even if decryption fails (maybe it wasn't encrypted)
+					// TODO: add a way to decrypt it with another password?
+					addMessage(call, getString(R.string.received_decrypt_failed), new String(received).trim());
+				}
+				break;
+		}
+	}
+
+	// null if any of the segments is missing
+	private static byte[] joinSegments(byte[][] segments) {
+		ByteArrayOutputStream joined = new ByteArrayOutputStream();
+		for (byte[] segment : segments) {
+			if (segment == null)
+				return null;
+			joined.write(segment, 0, segment.length);
+		}
+		return joined.toByteArray();
+	}
+
+	// shows the segments as they are, as decryption needs all of them, null if none is left
+	private String partialSegments(byte[][] segments) {
+		StringBuilder text = new StringBuilder();
+		boolean any = false;
+		for (int i = 0; i < segments.length; ++i) {
+			if (segments[i] == null) {
+				text.append(getString(R.string.segment_missing, i + 1, segments.length));
+			} else {
+				text.append(new String(segments[i]).replace("\0", ""));
+				any = true;
 			}
 		}
-	};
+		return any ? text.toString().trim() : null;
+	}
+
+	private static final int BLACK_BOX_FAIL = 1;
+	private static final int BLACK_BOX_NOPE = 2;
+	private static final int BLACK_BOX_DECODE = 4;
+
+	// runs for every event: no allocations, no waiting for the writer
+	private void recordBlackBox(int trigger, int status, int mode, int result, float cfo, int position, float precision) {
+		if ((blackBoxTriggers & trigger) == 0 || blackBoxDump != null)
+			return;
+		// the decoder already froze its history for this event
+		ByteBuffer dump = blackBox.acquire();
+		if (dump == null) {
+			discardBlackBox();
+			return;
+		}
+		blackBox.header(dump, status, mode, result, cfo, position, precision, eventCall);
+		blackBoxDump = dump;
+	}
+
+	// hands the dump to the writer once the decoder froze the samples after the trigger
+	private void completeBlackBox() {
+		if (blackBoxDump == null)
+			return;
+		int count = dumpBlackBox(blackBoxDump, BlackBox.HEADER_SIZE);
+		if (count == 0)
+			return;
+		if (count < 0)
+			blackBox.release(blackBoxDump);
+		else
+			blackBox.submit(blackBoxDump, count);
+		blackBoxDump = null;
+	}
+
+	// the recorder with its thread and buffers only exists while some trigger is enabled
+	private void updateBlackBox() {
+		boolean enable = blackBoxTriggers != 0;
+		enableBlackBox(blackBoxTriggers, BlackBox.SAMPLES_AFTER);
+		if (enable && blackBox == null) {
+			blackBox = new BlackBox(new File(getFilesDir(), "blackbox"), 16 << 20);
+		} else if (!enable && blackBox != null) {
+			blackBox.shutdown();
+			blackBox = null;
+			blackBoxDump = null;
+		}
+	}
 
 	private void setStatus(String str, boolean tmp) {
 		if (statusTimer != null)
@@ -319,28 +657,20 @@ public class MainActivity extends AppCompatActivity {
 		setStatus(str, false);
 	}
 
-	private void fromStatus() {
-		setStatus(getString(R.string.from_status, new String(stagedCall).trim(), stagedMode[0], stagedCFO[0]), true);
-	}
-
-	private byte[] callTerm() {
-		return Arrays.copyOf(callSign.getBytes(StandardCharsets.US_ASCII), callSign.length() + 1);
-	}
-
-	private String currentTime() {
-		return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date());
+	private void fromStatus(String call, int mode, float cfo) {
+		setStatus(getString(R.string.from_status, call, mode, cfo), true);
 	}
 
 	private void addLine(String call, String info) {
-		addString(getString(R.string.title_line, currentTime(), call, info));
+		addString(messageLog.line(call, info));
 	}
 
 	private void addMessage(String call, String info, String mesg) {
-		addString(getString(R.string.title_message, currentTime(), call, info, mesg));
+		addString(messageLog.message(call, info, mesg));
 	}
 
 	private void addString(String str) {
-		int count = 100;
+		int count = MessageLog.CAPACITY;
 		if (messages.getCount() >= count)
 			messages.remove(messages.getItem(count - 1));
 		messages.insert(str, 0);
@@ -348,10 +678,21 @@ public class MainActivity extends AppCompatActivity {
 	}
 
 	private void startListening() {
-		if (audioRecord != null) {
-			audioRecord.startRecording();
-			if (audioRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
-				audioRecord.read(recordBuffer, 0, recordBuffer.length);
+		if (capture != null && capture.capacity != recordBufferFrames()) {
+			initAudioRecord(true);
+			return;
+		}
+		if (capture != null && decoderRate == recordRate) {
+			// falls back to AudioRecord if AAudio refuses our rate or channel count
+			if (nativeAudio && startNativeAudio(recordRate, recordChannel, audioSource)) {
+				handler.removeCallbacks(nativeAudioTimer);
+				handler.postDelayed(nativeAudioTimer, NATIVE_AUDIO_POLL);
+				setStatus(getString(R.string.listening));
+				return;
+			}
+			capture.audioRecord.startRecording();
+			if (capture.audioRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
+				audioHandler.post(capture::start);
 				setStatus(getString(R.string.listening));
 			} else {
 				setStatus(getString(R.string.audio_recording_error));
@@ -359,21 +700,88 @@ public class MainActivity extends AppCompatActivity {
 		}
 	}
 
+	// keep in sync with struct Metrics in metrics.hh
+	private static final String[] METRICS_COUNTERS = {"triggers", "preamble_fail", "nope", "ping", "done", "polar_fail", "flips", "dropped", "erased", "off_band"};
+	private static final String[] METRICS_HISTOGRAMS = {"feed", "preamble", "process", "compensate", "polar", "snr"};
+	private static final int METRICS_BINS = 16;
+	private static final long METRICS_LOG_SIZE = 1 << 20;
+
+	private void startMetrics() {
+		if (metricsTimer != null) {
+			handler.removeCallbacks(metricsTimer);
+			metricsTimer = null;
+		}
+		enableMetrics(metricsInterval > 0);
+		readShortfalls.set(0);
+		lateNotifications.set(0);
+		recordOverruns.set(0);
+		if (metricsInterval <= 0)
+			return;
+		metricsTimer = new Runnable() {
+			@Override
+			public void run() {
+				logMetrics();
+				handler.postDelayed(this, metricsInterval);
+			}
+		};
+		handler.postDelayed(metricsTimer, metricsInterval);
+	}
+
+	private void logMetrics() {
+		int count = readMetrics(metricsValues);
+		// the decoder was busy, everything counted so far goes into the next line
+		if (count < 0)
+			return;
+		StringBuilder line = new StringBuilder(messageLog.currentTime());
+		line.append(" shortfalls=").append(readShortfalls.getAndSet(0));
+		line.append(" late=").append(lateNotifications.getAndSet(0));
+		line.append(" overruns=").append(recordOverruns.getAndSet(0));
+		int index = 0;
+		for (String name : METRICS_COUNTERS)
+			if (index < count)
+				line.append(' ').append(name).append('=').append(metricsValues[index++]);
+		for (String name : METRICS_HISTOGRAMS) {
+			line.append(' ').append(name).append('=');
+			for (int i = 0; i < METRICS_BINS && index < count; ++i) {
+				if (i > 0)
+					line.append(',');
+				line.append(metricsValues[index++]);
+			}
+		}
+		line.append('\n');
+		byte[] bytes = line.toString().getBytes(StandardCharsets.US_ASCII);
+		File dir = getFilesDir();
+		logThread.execute(() -> {
+			// keep the current and the previous log around
+			File file = new File(dir, "metrics.log");
+			if (file.length() > METRICS_LOG_SIZE)
+				file.renameTo(new File(dir, "metrics.log.1"));
+			try (FileOutputStream stream = new FileOutputStream(file, true)) {
+				stream.write(bytes);
+			} catch (IOException ignored) {
+			}
+		});
+	}
+
 	private void stopListening() {
-		if (audioRecord != null)
-			audioRecord.stop();
+		handler.removeCallbacks(nativeAudioTimer);
+		stopNativeAudio();
+		if (capture != null)
+			capture.audioRecord.stop();
 	}
 
 	private void initAudioRecord(boolean restart) {
-		if (audioRecord != null) {
-			boolean rateChanged = audioRecord.getSampleRate() != recordRate;
-			boolean channelChanged = audioRecord.getChannelCount() != (recordChannel == 0 ? 1 : 2);
-			boolean sourceChanged = audioRecord.getAudioSource() != audioSource;
-			if (!rateChanged && !channelChanged && !sourceChanged)
+		if (capture != null) {
+			boolean rateChanged = capture.sampleRate != recordRate;
+			boolean channelChanged = capture.channelSelect != recordChannel;
+			boolean sourceChanged = capture.audioRecord.getAudioSource() != audioSource;
+			boolean sizeChanged = capture.capacity != recordBufferFrames();
+			if (!rateChanged && !channelChanged && !sourceChanged && !sizeChanged)
 				return;
 			stopListening();
-			audioRecord.release();
-			audioRecord = null;
+			// after the notifications still queued for it
+			audioHandler.post(capture.audioRecord::release);
+			capture = null;
 		}
 		int channelConfig = AudioFormat.CHANNEL_IN_MONO;
 		int channelCount = 1;
@@ -382,24 +790,22 @@ public class MainActivity extends AppCompatActivity {
 			channelConfig = AudioFormat.CHANNEL_IN_STEREO;
 		}
 		int frameSize = sampleSize * channelCount;
-		int bufferSize = 2 * Integer.highestOneBit(3 * recordRate) * frameSize;
+		int bufferSize = recordBufferFrames() * frameSize;
 		try {
 			AudioRecord testAudioRecord = new AudioRecord(audioSource, recordRate, channelConfig, audioFormat, bufferSize);
 			if (testAudioRecord.getState() == AudioRecord.STATE_INITIALIZED) {
-				if (createDecoder(recordRate)) {
-					audioRecord = testAudioRecord;
-					recordCount = recordRate / 50;
-					recordBuffer = new short[recordCount * channelCount];
-					audioRecord.setRecordPositionUpdateListener(recordListener);
-					audioRecord.setPositionNotificationPeriod(recordCount);
-					if (restart)
-						startListening();
-				} else {
-					testAudioRecord.release();
-					setStatus(getString(R.string.heap_error));
-				}
+				capture = new Capture(testAudioRecord, recordChannel, recordBufferFrames());
+				testAudioRecord.setRecordPositionUpdateListener(capture, audioHandler);
+				testAudioRecord.setPositionNotificationPeriod(recordPeriods * capture.period);
+				initDecoder(restart);
 			} else {
 				testAudioRecord.release();
+				// a larger buffer is not worth giving up on recording
+				if (recordBufferScale > 1) {
+					recordBufferScale = 1;
+					initAudioRecord(restart);
+					return;
+				}
 				setStatus(getString(R.string.audio_init_failed));
 			}
 		} catch (IllegalArgumentException e) {
@@ -409,6 +815,37 @@ public class MainActivity extends AppCompatActivity {
 		}
 	}
 
+	// the decoder is built on its own thread and installed from the UI thread
+	private void initDecoder(boolean restart) {
+		int sampleRate = recordRate;
+		if (decoderRate == sampleRate) {
+			if (restart)
+				startListening();
+			return;
+		}
+		decoderRate = 0;
+		decoderThread.execute(() -> {
+			long decoder = createDecoder(sampleRate);
+			handler.post(() -> {
+				if (isDestroyed()) {
+					deleteDecoder(decoder);
+					return;
+				}
+				if (decoder == 0) {
+					setStatus(getString(R.string.heap_error));
+					return;
+				}
+				installDecoder(decoder);
+				// a newer request for another rate is still on its way
+				if (sampleRate != recordRate)
+					return;
+				decoderRate = sampleRate;
+				if (resumed)
+					startListening();
+			});
+		});
+	}
+
 	private void setRecordRate(int newSampleRate) {
 		if (recordRate == newSampleRate)
 			return;
@@ -443,97 +880,195 @@ public class MainActivity extends AppCompatActivity {
 				initAudioRecord(false);
 	}
 
+	// the settings as they are right now
+	private Settings settings() {
+		Settings settings = new Settings();
+		settings.outputRate = outputRate;
+		settings.outputChannel = outputChannel;
+		settings.recordRate = recordRate;
+		settings.recordChannel = recordChannel;
+		settings.audioSource = audioSource;
+		settings.carrierFrequency = carrierFrequency;
+		settings.noiseSymbols = noiseSymbols;
+		settings.paprEffort = paprEffort;
+		settings.frameGap = frameGap;
+		settings.metricsInterval = metricsInterval;
+		settings.blackBoxTriggers = blackBoxTriggers;
+		settings.showSpectrum = showSpectrum;
+		settings.nativeAudio = nativeAudio;
+		settings.fixedPoint = fixedPoint;
+		settings.multiCarrier = multiCarrier;
+		settings.bandRestricted = bandRestricted;
+		settings.callSign = callSign;
+		settings.draftText = draftText;
+		settings.password = password;
+		return settings;
+	}
+
+	private void applySettings(Settings settings) {
+		outputRate = settings.outputRate;
+		outputChannel = settings.outputChannel;
+		recordRate = settings.recordRate;
+		recordChannel = settings.recordChannel;
+		audioSource = settings.audioSource;
+		carrierFrequency = settings.carrierFrequency;
+		noiseSymbols = settings.noiseSymbols;
+		paprEffort = settings.paprEffort;
+		frameGap = settings.frameGap;
+		metricsInterval = settings.metricsInterval;
+		blackBoxTriggers = settings.blackBoxTriggers;
+		showSpectrum = settings.showSpectrum;
+		nativeAudio = settings.nativeAudio;
+		fixedPoint = settings.fixedPoint;
+		multiCarrier = settings.multiCarrier;
+		bandRestricted = settings.bandRestricted;
+		callSign = settings.callSign;
+		draftText = settings.draftText;
+		password = settings.password;
+	}
+
+	private static Settings.Reader reader(SharedPreferences pref) {
+		return new Settings.Reader() {
+			@Override
+			public int getInt(String key, int value) {
+				return pref.getInt(key, value);
+			}
+
+			@Override
+			public boolean getBoolean(String key, boolean value) {
+				return pref.getBoolean(key, value);
+			}
+
+			@Override
+			public String getString(String key, String value) {
+				return pref.getString(key, value);
+			}
+		};
+	}
+
+	private static Settings.Reader reader(Bundle state) {
+		return new Settings.Reader() {
+			@Override
+			public int getInt(String key, int value) {
+				return state.getInt(key, value);
+			}
+
+			@Override
+			public boolean getBoolean(String key, boolean value) {
+				return state.getBoolean(key, value);
+			}
+
+			@Override
+			public String getString(String key, String value) {
+				return state.getString(key, value);
+			}
+		};
+	}
+
+	private static Settings.Writer writer(SharedPreferences.Editor edit) {
+		return new Settings.Writer() {
+			@Override
+			public void putInt(String key, int value) {
+				edit.putInt(key, value);
+			}
+
+			@Override
+			public void putBoolean(String key, boolean value) {
+				edit.putBoolean(key, value);
+			}
+
+			@Override
+			public void putString(String key, String value) {
+				edit.putString(key, value);
+			}
+		};
+	}
+
+	private static Settings.Writer writer(Bundle state) {
+		return new Settings.Writer() {
+			@Override
+			public void putInt(String key, int value) {
+				state.putInt(key, value);
+			}
+
+			@Override
+			public void putBoolean(String key, boolean value) {
+				state.putBoolean(key, value);
+			}
+
+			@Override
+			public void putString(String key, String value) {
+				state.putString(key, value);
+			}
+		};
+	}
+
 	@Override
 	protected void onSaveInstanceState(@NonNull Bundle state) {
-		state.putInt("outputRate", outputRate);
-		state.putInt("outputChannel", outputChannel);
-		state.putInt("recordRate", recordRate);
-		state.putInt("recordChannel", recordChannel);
-		state.putInt("audioSource", audioSource);
-		state.putInt("carrierFrequency", carrierFrequency);
-		state.putInt("noiseSymbols", noiseSymbols);
-		state.putString("callSign", callSign);
-		state.putString("draftText", draftText);
-		state.putString("password", password);
+		settings().write(writer(state));
 		for (int i = 0; i < messages.getCount(); ++i)
-			state.putString("m" + i, messages.getItem(i));
+			state.putString(MessageLog.key(i), messages.getItem(i));
 		super.onSaveInstanceState(state);
 	}
 
 	private void storeSettings() {
 		SharedPreferences pref = getPreferences(Context.MODE_PRIVATE);
 		SharedPreferences.Editor edit = pref.edit();
-		edit.putInt("outputRate", outputRate);
-		edit.putInt("outputChannel", outputChannel);
-		edit.putInt("recordRate", recordRate);
-		edit.putInt("recordChannel", recordChannel);
-		edit.putInt("audioSource", audioSource);
-		edit.putInt("carrierFrequency", carrierFrequency);
-		edit.putInt("noiseSymbols", noiseSymbols);
-		edit.putString("callSign", callSign);
-		edit.putString("draftText", draftText);
-		edit.putString("password", password);
+		settings().write(writer(edit));
 		for (int i = 0; i < messages.getCount(); ++i)
-			edit.putString("m" + i, messages.getItem(i));
+			edit.putString(MessageLog.key(i), messages.getItem(i));
 		edit.apply();
 	}
 
 	@Override
 	protected void onCreate(Bundle state) {
 		messages = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1);
-		final int defaultSampleRate = 8000;
-		final int defaultChannelSelect = 0;
-		final int defaultAudioSource = MediaRecorder.AudioSource.DEFAULT;
-		final int defaultCarrierFrequency = 1500;
-		final int defaultNoiseSymbols = 6;
-		final String defaultCallSign = "ANONYMOUS";
-		final String defaultDraftText = "";
-		final String defaultPassword = "password";
+		Settings settings = new Settings();
 		if (state == null) {
 			SharedPreferences pref = getPreferences(Context.MODE_PRIVATE);
 			AppCompatDelegate.setDefaultNightMode(AppCompatDelegate.getDefaultNightMode());
-			outputRate = pref.getInt("outputRate", defaultSampleRate);
-			outputChannel = pref.getInt("outputChannel", defaultChannelSelect);
-			recordRate = pref.getInt("recordRate", defaultSampleRate);
-			recordChannel = pref.getInt("recordChannel", defaultChannelSelect);
-			audioSource = pref.getInt("audioSource", defaultAudioSource);
-			carrierFrequency = pref.getInt("carrierFrequency", defaultCarrierFrequency);
-			noiseSymbols = pref.getInt("noiseSymbols", defaultNoiseSymbols);
-			callSign = pref.getString("callSign", defaultCallSign);
-			draftText = pref.getString("draftText", defaultDraftText);
-			password = pref.getString("password", defaultPassword);
-			for (int i = 0; i < 100; ++i) {
-				String mesg = pref.getString("m" + i, null);
+			settings.read(reader(pref));
+			for (int i = 0; i < MessageLog.CAPACITY; ++i) {
+				String mesg = pref.getString(MessageLog.key(i), null);
 				if (mesg != null)
 					messages.add(mesg);
 			}
 		} else {
 			AppCompatDelegate.setDefaultNightMode(AppCompatDelegate.getDefaultNightMode());
-			outputRate = state.getInt("outputRate", defaultSampleRate);
-			outputChannel = state.getInt("outputChannel", defaultChannelSelect);
-			recordRate = state.getInt("recordRate", defaultSampleRate);
-			recordChannel = state.getInt("recordChannel", defaultChannelSelect);
-			audioSource = state.getInt("audioSource", defaultAudioSource);
-			carrierFrequency = state.getInt("carrierFrequency", defaultCarrierFrequency);
-			noiseSymbols = state.getInt("noiseSymbols", defaultNoiseSymbols);
-			callSign = state.getString("callSign", defaultCallSign);
-			draftText = state.getString("draftText", defaultDraftText);
-			password = state.getString("password", defaultPassword);
-			for (int i = 0; i < 100; ++i) {
-				String mesg = state.getString("m" + i, null);
+			settings.read(reader(state));
+			for (int i = 0; i < MessageLog.CAPACITY; ++i) {
+				String mesg = state.getString(MessageLog.key(i), null);
 				if (mesg != null)
 					messages.add(mesg);
 			}
 		}
+		applySettings(settings);
 		super.onCreate(state);
+		cipher = new MessageCipher(password);
+		messageLog = new MessageLog(getString(R.string.title_line), getString(R.string.title_message));
 		ActivityMainBinding binding = ActivityMainBinding.inflate(getLayoutInflater());
 		status = binding.status;
+		spectrumView = binding.spectrum;
+		spectrumBitmap = Bitmap.createBitmap(360, 128, Bitmap.Config.ARGB_8888);
+		spectrogramBitmap = Bitmap.createBitmap(360, 2 * 128, Bitmap.Config.ARGB_8888);
+		spectrumView.setBitmaps(spectrumBitmap, spectrogramBitmap);
+		spectrumView.setVisibility(showSpectrum ? View.VISIBLE : View.GONE);
 		handler = new Handler(getMainLooper());
 		setContentView(binding.getRoot());
-		stagedCFO = new float[1];
-		stagedMode = new int[1];
-		stagedCall = new byte[10];
+		decoderEvents = ByteBuffer.allocateDirect(EVENT_COUNT * EVENT_SIZE).order(ByteOrder.nativeOrder());
+		recordEvents = ByteBuffer.allocateDirect(EVENT_COUNT * EVENT_SIZE).order(ByteOrder.nativeOrder());
+		audioThread = new HandlerThread("audio", Process.THREAD_PRIORITY_AUDIO);
+		audioThread.start();
+		audioHandler = new Handler(audioThread.getLooper());
+		eventCall = new byte[10];
 		payload = new byte[170];
+		metricsValues = new int[METRICS_COUNTERS.length + METRICS_HISTOGRAMS.length * METRICS_BINS];
+		logThread = Executors.newSingleThreadExecutor();
+		startMetrics();
+		updateBlackBox();
+		enableFixedPoint(fixedPoint);
+		enableMultiCarrier(multiCarrier);
+		updateCarrierRange();
 		binding.messages.setAdapter(messages);
 		binding.messages.setOnItemClickListener((adapterView, view, i, l) -> {
 			String item = messages.getItem(i);
@@ -552,7 +1087,9 @@ public class MainActivity extends AppCompatActivity {
 			}
 			return true;
 		});
-		initAudioTrack();
+		encoderThread = Executors.newSingleThreadExecutor();
+		decoderThread = Executors.newSingleThreadExecutor();
+		initEncoder();
 
 		List<String> permissions = new ArrayList<>();
 		if (ContextCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
@@ -621,14 +1158,148 @@ public class MainActivity extends AppCompatActivity {
 		}
 	}
 
+	private void setPaprEffort(int newPaprEffort) {
+		if (paprEffort == newPaprEffort)
+			return;
+		paprEffort = newPaprEffort;
+		updatePaprEffortMenu();
+	}
+
+	private void updatePaprEffortMenu() {
+		switch (paprEffort) {
+			case 0:
+				menu.findItem(R.id.action_disable_papr_reduction).setChecked(true);
+				break;
+			case 1:
+				menu.findItem(R.id.action_set_papr_single_pass).setChecked(true);
+				break;
+			case 2:
+				menu.findItem(R.id.action_set_papr_two_iterations).setChecked(true);
+				break;
+			case 4:
+				menu.findItem(R.id.action_set_papr_four_iterations).setChecked(true);
+				break;
+			case 8:
+				menu.findItem(R.id.action_set_papr_eight_iterations).setChecked(true);
+				break;
+		}
+	}
+
+	private void setFrameGap(int newFrameGap) {
+		if (frameGap == newFrameGap)
+			return;
+		frameGap = newFrameGap;
+		updateFrameGapMenu();
+	}
+
+	private void updateFrameGapMenu() {
+		switch (frameGap) {
+			case 250:
+				menu.findItem(R.id.action_set_gap_quarter_second).setChecked(true);
+				break;
+			case 500:
+				menu.findItem(R.id.action_set_gap_half_second).setChecked(true);
+				break;
+			case 1000:
+				menu.findItem(R.id.action_set_gap_one_second).setChecked(true);
+				break;
+			case 2000:
+				menu.findItem(R.id.action_set_gap_two_seconds).setChecked(true);
+				break;
+			case 4000:
+				menu.findItem(R.id.action_set_gap_four_seconds).setChecked(true);
+				break;
+		}
+	}
+
+	private void setShowSpectrum(boolean newShowSpectrum) {
+		showSpectrum = newShowSpectrum;
+		menu.findItem(R.id.action_show_spectrum).setChecked(showSpectrum);
+		spectrumView.setVisibility(showSpectrum ? View.VISIBLE : View.GONE);
+	}
+
+	private void setNativeAudio(boolean newNativeAudio) {
+		nativeAudio = newNativeAudio;
+		menu.findItem(R.id.action_native_audio).setChecked(nativeAudio);
+		if (isTransmitting())
+			return;
+		stopListening();
+		startListening();
+	}
+
+	private void setFixedPoint(boolean newFixedPoint) {
+		fixedPoint = newFixedPoint;
+		menu.findItem(R.id.action_fixed_point).setChecked(fixedPoint);
+		enableFixedPoint(fixedPoint);
+	}
+
+	private void setMultiCarrier(boolean newMultiCarrier) {
+		multiCarrier = newMultiCarrier;
+		menu.findItem(R.id.action_multi_carrier).setChecked(multiCarrier);
+		enableMultiCarrier(multiCarrier);
+	}
+
+	// how far the carrier of the other side may be off from ours
+	private static final int CARRIER_TOLERANCE = 200;
+
+	private void updateCarrierRange() {
+		if (bandRestricted)
+			setCarrierRange(carrierFrequency - CARRIER_TOLERANCE, carrierFrequency + CARRIER_TOLERANCE);
+		else
+			setCarrierRange(Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	private void setBandRestricted(boolean newBandRestricted) {
+		bandRestricted = newBandRestricted;
+		menu.findItem(R.id.action_band_restricted).setChecked(bandRestricted);
+		updateCarrierRange();
+	}
+
+	private void toggleBlackBoxTrigger(int trigger) {
+		blackBoxTriggers ^= trigger;
+		updateBlackBoxMenu();
+		updateBlackBox();
+	}
+
+	private void updateBlackBoxMenu() {
+		menu.findItem(R.id.action_black_box_fail).setChecked((blackBoxTriggers & BLACK_BOX_FAIL) != 0);
+		menu.findItem(R.id.action_black_box_nope).setChecked((blackBoxTriggers & BLACK_BOX_NOPE) != 0);
+		menu.findItem(R.id.action_black_box_decode).setChecked((blackBoxTriggers & BLACK_BOX_DECODE) != 0);
+	}
+
+	private void setMetricsInterval(int newMetricsInterval) {
+		if (metricsInterval == newMetricsInterval)
+			return;
+		metricsInterval = newMetricsInterval;
+		updateMetricsIntervalMenu();
+		startMetrics();
+	}
+
+	private void updateMetricsIntervalMenu() {
+		switch (metricsInterval) {
+			case 0:
+				menu.findItem(R.id.action_disable_metrics).setChecked(true);
+				break;
+			case 15000:
+				menu.findItem(R.id.action_set_metrics_quarter_minute).setChecked(true);
+				break;
+			case 60000:
+				menu.findItem(R.id.action_set_metrics_one_minute).setChecked(true);
+				break;
+			case 120000:
+				menu.findItem(R.id.action_set_metrics_two_minutes).setChecked(true);
+				break;
+		}
+	}
+
 	private void setOutputRate(int newSampleRate) {
-		if (audioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING)
+		if (isTransmitting())
 			return;
 		if (outputRate == newSampleRate)
 			return;
 		outputRate = newSampleRate;
 		updateOutputRateMenu();
-		initAudioTrack();
+		initEncoder();
 	}
 
 	private void updateOutputRateMenu() {
@@ -712,13 +1383,12 @@ public class MainActivity extends AppCompatActivity {
 	}
 
 	private void setOutputChannel(int newChannelSelect) {
-		if (audioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING)
+		if (isTransmitting())
 			return;
 		if (outputChannel == newChannelSelect)
 			return;
 		outputChannel = newChannelSelect;
 		updateOutputChannelMenu();
-		initAudioTrack();
 	}
 
 	private void updateOutputChannelMenu() {
@@ -749,6 +1419,16 @@ public class MainActivity extends AppCompatActivity {
 		updateRecordChannelMenu();
 		updateAudioSourceMenu();
 		updateNoiseSymbolsMenu();
+		updatePaprEffortMenu();
+		updateFrameGapMenu();
+		updateMetricsIntervalMenu();
+		updateBlackBoxMenu();
+		menu.findItem(R.id.action_show_spectrum).setChecked(showSpectrum);
+		menu.findItem(R.id.action_native_audio).setEnabled(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O);
+		menu.findItem(R.id.action_native_audio).setChecked(nativeAudio);
+		menu.findItem(R.id.action_fixed_point).setChecked(fixedPoint);
+		menu.findItem(R.id.action_multi_carrier).setChecked(multiCarrier);
+		menu.findItem(R.id.action_band_restricted).setChecked(bandRestricted);
 		return true;
 	}
 
@@ -899,6 +1579,94 @@ public class MainActivity extends AppCompatActivity {
 			setNoiseSymbols(22);
 			return true;
 		}
+		if (id == R.id.action_disable_papr_reduction) {
+			setPaprEffort(0);
+			return true;
+		}
+		if (id == R.id.action_set_papr_single_pass) {
+			setPaprEffort(1);
+			return true;
+		}
+		if (id == R.id.action_set_papr_two_iterations) {
+			setPaprEffort(2);
+			return true;
+		}
+		if (id == R.id.action_set_papr_four_iterations) {
+			setPaprEffort(4);
+			return true;
+		}
+		if (id == R.id.action_set_papr_eight_iterations) {
+			setPaprEffort(8);
+			return true;
+		}
+		if (id == R.id.action_set_gap_quarter_second) {
+			setFrameGap(250);
+			return true;
+		}
+		if (id == R.id.action_set_gap_half_second) {
+			setFrameGap(500);
+			return true;
+		}
+		if (id == R.id.action_set_gap_one_second) {
+			setFrameGap(1000);
+			return true;
+		}
+		if (id == R.id.action_set_gap_two_seconds) {
+			setFrameGap(2000);
+			return true;
+		}
+		if (id == R.id.action_set_gap_four_seconds) {
+			setFrameGap(4000);
+			return true;
+		}
+		if (id == R.id.action_show_spectrum) {
+			setShowSpectrum(!showSpectrum);
+			return true;
+		}
+		if (id == R.id.action_native_audio) {
+			setNativeAudio(!nativeAudio);
+			return true;
+		}
+		if (id == R.id.action_fixed_point) {
+			setFixedPoint(!fixedPoint);
+			return true;
+		}
+		if (id == R.id.action_multi_carrier) {
+			setMultiCarrier(!multiCarrier);
+			return true;
+		}
+		if (id == R.id.action_band_restricted) {
+			setBandRestricted(!bandRestricted);
+			return true;
+		}
+		if (id == R.id.action_black_box_fail) {
+			toggleBlackBoxTrigger(BLACK_BOX_FAIL);
+			return true;
+		}
+		if (id == R.id.action_black_box_nope) {
+			toggleBlackBoxTrigger(BLACK_BOX_NOPE);
+			return true;
+		}
+		if (id == R.id.action_black_box_decode) {
+			toggleBlackBoxTrigger(BLACK_BOX_DECODE);
+			return true;
+		}
+		if (id == R.id.action_disable_metrics) {
+			setMetricsInterval(0);
+			return true;
+		}
+		if (id == R.id.action_set_metrics_quarter_minute) {
+			setMetricsInterval(15000);
+			return true;
+		}
+		if (id == R.id.action_set_metrics_one_minute) {
+			setMetricsInterval(60000);
+			return true;
+		}
+		if (id == R.id.action_set_metrics_two_minutes) {
+			setMetricsInterval(120000);
+			return true;
+		}
 		if (id == R.id.action_force_quit) {
 			forcedQuit();
 			return true;
@@ -926,8 +1694,8 @@ public class MainActivity extends AppCompatActivity {
 					messages.clear();
 					SharedPreferences pref = getPreferences(Context.MODE_PRIVATE);
 					SharedPreferences.Editor editor = pref.edit();
-					for (int i = 0; i < 100; ++i)
-						editor.remove("m" + i);
+					for (int i = 0; i < MessageLog.CAPACITY; ++i)
+						editor.remove(MessageLog.key(i));
 					editor.apply();
 				})
 				.setNegativeButton(R.string.cancel, null)
@@ -1000,26 +1768,54 @@ public class MainActivity extends AppCompatActivity {
 		edit.setText(temp == null ? draftText : temp);
 	}
 
+	// encodes on the encoder thread, so the next message is ready while the previous one is still playing
 	private void transmitMessage(String message) {
 		stopListening();
-		byte[] mesg;
-		try {
-			mesg = encryptText(message);
-		} catch (Exception e) {
-			Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
-			return;
-		}
-		if (message.isEmpty())
-			addLine(callSign.trim(), getString(R.string.sent_ping));
-		else
-			addMessage(callSign.trim(), getString(R.string.transmitted), message);
-		configureEncoder(mesg, callTerm(), carrierFrequency, noiseSymbols, false);
-		for (int i = 0; i < 5; ++i) {
-			produceEncoder(outputBuffer, outputChannel);
-			audioTrack.write(outputBuffer, 0, outputBuffer.length);
-		}
-		audioTrack.play();
-		setStatus(getString(R.string.transmitting));
+		++pendingBursts;
+		byte[] call = MessageLog.callTerm(callSign);
+		// the password might change while this one is still being encoded
+		MessageCipher cipher = this.cipher;
+		String trimmedCall = callSign.trim();
+		int carrier = carrierFrequency;
+		int noise = noiseSymbols;
+		int effort = paprEffort;
+		int sampleRate = outputRate;
+		int channelSelect = outputChannel;
+		encoderThread.execute(() -> {
+			byte[] mesg;
+			try {
+				mesg = cipher.encrypt(message);
+			} catch (Exception e) {
+				handler.post(() -> {
+					--pendingBursts;
+					Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
+					transmitNext();
+				});
+				return;
+			}
+			effortEncoder(effort);
+			configureEncoder(mesg, call, carrier, noise, false);
+			int channelCount = channelSelect == 0 ? 1 : 2;
+			int sampleCount = lengthEncoder() * channelCount;
+			short[] reused = burstBuffers.poll();
+			short[] audioBuffer = reused != null && reused.length >= sampleCount ? reused : new short[sampleCount];
+			int frameCount = renderEncoder(audioBuffer, channelSelect);
+			float papr = paprEncoder();
+			handler.post(() -> {
+				--pendingBursts;
+				if (frameCount <= 0) {
+					burstBuffers.offer(audioBuffer);
+					setStatus(getString(R.string.audio_init_failed));
+				} else {
+					if (message.isEmpty())
+						addLine(trimmedCall, getString(R.string.sent_ping));
+					else
+						addMessage(trimmedCall, getString(R.string.transmitted), message);
+					transmitQueue.add(new Burst(audioBuffer, frameCount, sampleRate, channelSelect, papr));
+				}
+				transmitNext();
+			});
+		});
 	}
 
 	private String[] carrierValues(int minCarrierFrequency, int maxCarrierFrequency) {
@@ -1061,7 +1857,10 @@ public class MainActivity extends AppCompatActivity {
 		builder.setTitle(R.string.carrier_frequency);
 		builder.setView(view);
 		builder.setNegativeButton(R.string.cancel, null);
-		builder.setPositiveButton(R.string.okay, (dialogInterface, i) -> carrierFrequency = picker.getValue() * 50 + minCarrierFrequency);
+		builder.setPositiveButton(R.string.okay, (dialogInterface, i) -> {
+			carrierFrequency = picker.getValue() * 50 + minCarrierFrequency;
+			updateCarrierRange();
+		});
 		builder.show();
 	}
 
@@ -1088,12 +1887,14 @@ public class MainActivity extends AppCompatActivity {
 
 	@Override
 	protected void onResume() {
+		resumed = true;
 		startListening();
 		super.onResume();
 	}
 
 	@Override
 	protected void onPause() {
+		resumed = false;
 		stopListening();
 		storeSettings();
 		super.onPause();
@@ -1101,8 +1902,28 @@ public class MainActivity extends AppCompatActivity {
 
 	@Override
 	protected void onDestroy() {
-		audioTrack.stop();
-		destroyEncoder();
+		if (metricsTimer != null)
+			handler.removeCallbacks(metricsTimer);
+		Choreographer.getInstance().removeFrameCallback(spectrumCallback);
+		releaseAudioTrack();
+		encoderThread.execute(this::destroyEncoder);
+		encoderThread.shutdown();
+		decoderThread.shutdown();
+		logThread.shutdown();
+		stopListening();
+		// the notifications already queued still feed the decoder, so it has to outlive them
+		audioThread.quitSafely();
+		try {
+			audioThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (capture != null) {
+			capture.audioRecord.release();
+			capture = null;
+		}
+		if (blackBox != null)
+			blackBox.shutdown();
 		destroyDecoder();
 		super.onDestroy();
 	}
@@ -0,0 +1,91 @@
+/*
+Password based encryption of the messages
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+package com.aicodix.rattlegram;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+Kept free of Android dependencies, so the benchmark module can run it on
+a plain JVM. The key only depends on the password, so it is derived once
+and not for every message, as the 2048 rounds of PBKDF2 dwarf the rest.
+
+Payload layout: IV (16) + length (1) + data (variable)
+*/
+public class MessageCipher {
+	public static final int IV_SIZE = 16;
+	private final SecureRandom random = new SecureRandom();
+	private final String password;
+	private SecretKey key;
+
+	public MessageCipher(String password) {
+		this.password = password;
+	}
+
+	public static SecretKey deriveKey(String text) throws Exception {
+		SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+		KeySpec spec = new PBEKeySpec(text.toCharArray(), text.getBytes(), 2048, 256);
+		return new SecretKeySpec(factory.generateSecret(spec).getEncoded(), "AES");
+	}
+
+	// called from the encoder and the UI thread, an empty password keeps failing
+	private synchronized SecretKey key() throws Exception {
+		if (key == null)
+			key = deriveKey(password);
+		return key;
+	}
+
+	public byte[] encrypt(String text) throws Exception {
+		byte[] bytes = new byte[IV_SIZE];
+		random.nextBytes(bytes);
+		IvParameterSpec iv = new IvParameterSpec(bytes);
+		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5PADDING");
+		cipher.init(Cipher.ENCRYPT_MODE, key(), iv);
+		byte[] finalBytes = cipher.doFinal(text.getBytes(StandardCharsets.UTF_8));
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream(IV_SIZE + 1 + finalBytes.length);
+		output.write(iv.getIV());
+		output.write((byte) finalBytes.length);
+		output.write(finalBytes);
+		return output.toByteArray();
+	}
+
+	// InputStream.readNBytes requires API level 33
+	public static byte[] readN(InputStream input, int n) throws Exception {
+		byte[] temp = new byte[n];
+		if (input.read(temp) != n)
+			throw new Exception("Invalid data");
+		return temp;
+	}
+
+	public byte[] decrypt(byte[] data) throws Exception {
+		ByteArrayInputStream input = new ByteArrayInputStream(data);
+		IvParameterSpec iv = new IvParameterSpec(readN(input, IV_SIZE));
+		int length = input.read();
+
+		// AES/CBC/PKCS5PADDING is expected to be 16-byte aligned
+		if (length <= 0 || length % 16 != 0)
+			throw new Exception("Invalid length");
+
+		data = readN(input, length);
+
+		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5PADDING");
+		cipher.init(Cipher.DECRYPT_MODE, key(), iv);
+		return cipher.doFinal(data);
+	}
+}
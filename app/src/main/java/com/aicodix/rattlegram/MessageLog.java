@@ -0,0 +1,61 @@
+/*
+Formatting and storage keys of the message list
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+package com.aicodix.rattlegram;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/*
+Kept free of Android dependencies, so the benchmark module can run it on
+a plain JVM. The formats are the title_line and title_message string
+resources. Not thread safe, the app only uses it on the UI thread.
+*/
+public class MessageLog {
+	// the oldest message falls off the end of the list beyond that
+	public static final int CAPACITY = 100;
+	private static final String[] KEYS = new String[CAPACITY];
+	private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+	private final Date date = new Date();
+	private final String lineFormat;
+	private final String messageFormat;
+
+	static {
+		for (int i = 0; i < CAPACITY; ++i)
+			KEYS[i] = "m" + i;
+	}
+
+	public MessageLog(String lineFormat, String messageFormat) {
+		this.lineFormat = lineFormat;
+		this.messageFormat = messageFormat;
+	}
+
+	// preferences and instance state keep the messages under these, newest first
+	public static String key(int index) {
+		return KEYS[index];
+	}
+
+	// zero terminated, as the encoder expects it
+	public static byte[] callTerm(String callSign) {
+		return Arrays.copyOf(callSign.getBytes(StandardCharsets.US_ASCII), callSign.length() + 1);
+	}
+
+	public String currentTime() {
+		date.setTime(System.currentTimeMillis());
+		return timeFormat.format(date);
+	}
+
+	public String line(String call, String info) {
+		return String.format(lineFormat, currentTime(), call, info);
+	}
+
+	public String message(String call, String info, String mesg) {
+		return String.format(messageFormat, currentTime(), call, info, mesg);
+	}
+}
@@ -0,0 +1,97 @@
+/*
+Persisted settings and their storage keys
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+package com.aicodix.rattlegram;
+
+/*
+Kept free of Android dependencies, so the benchmark module can run it on
+a plain JVM. MainActivity adapts its SharedPreferences and instance state
+Bundle to Reader and Writer, so both keep the same keys and defaults.
+The messages are kept next to these under the keys of MessageLog.
+*/
+public class Settings {
+	public interface Reader {
+		int getInt(String key, int value);
+
+		boolean getBoolean(String key, boolean value);
+
+		String getString(String key, String value);
+	}
+
+	public interface Writer {
+		void putInt(String key, int value);
+
+		void putBoolean(String key, boolean value);
+
+		void putString(String key, String value);
+	}
+
+	public int outputRate = 8000;
+	public int outputChannel = 0;
+	public int recordRate = 8000;
+	public int recordChannel = 0;
+	// MediaRecorder.AudioSource.DEFAULT
+	public int audioSource = 0;
+	public int carrierFrequency = 1500;
+	public int noiseSymbols = 6;
+	public int paprEffort = 1;
+	public int frameGap = 1000;
+	public int metricsInterval = 0;
+	public int blackBoxTriggers = 0;
+	public boolean showSpectrum = false;
+	public boolean nativeAudio = false;
+	public boolean fixedPoint = false;
+	public boolean multiCarrier = false;
+	public boolean bandRestricted = false;
+	public String callSign = "ANONYMOUS";
+	public String draftText = "";
+	public String password = "password";
+
+	// what is missing keeps its current value
+	public void read(Reader reader) {
+		outputRate = reader.getInt("outputRate", outputRate);
+		outputChannel = reader.getInt("outputChannel", outputChannel);
+		recordRate = reader.getInt("recordRate", recordRate);
+		recordChannel = reader.getInt("recordChannel", recordChannel);
+		audioSource = reader.getInt("audioSource", audioSource);
+		carrierFrequency = reader.getInt("carrierFrequency", carrierFrequency);
+		noiseSymbols = reader.getInt("noiseSymbols", noiseSymbols);
+		paprEffort = reader.getInt("paprEffort", paprEffort);
+		frameGap = reader.getInt("frameGap", frameGap);
+		metricsInterval = reader.getInt("metricsInterval", metricsInterval);
+		blackBoxTriggers = reader.getInt("blackBoxTriggers", blackBoxTriggers);
+		showSpectrum = reader.getBoolean("showSpectrum", showSpectrum);
+		nativeAudio = reader.getBoolean("nativeAudio", nativeAudio);
+		fixedPoint = reader.getBoolean("fixedPoint", fixedPoint);
+		multiCarrier = reader.getBoolean("multiCarrier", multiCarrier);
+		bandRestricted = reader.getBoolean("bandRestricted", bandRestricted);
+		callSign = reader.getString("callSign", callSign);
+		draftText = reader.getString("draftText", draftText);
+		password = reader.getString("password", password);
+	}
+
+	public void write(Writer writer) {
+		writer.putInt("outputRate", outputRate);
+		writer.putInt("outputChannel", outputChannel);
+		writer.putInt("recordRate", recordRate);
+		writer.putInt("recordChannel", recordChannel);
+		writer.putInt("audioSource", audioSource);
+		writer.putInt("carrierFrequency", carrierFrequency);
+		writer.putInt("noiseSymbols", noiseSymbols);
+		writer.putInt("paprEffort", paprEffort);
+		writer.putInt("frameGap", frameGap);
+		writer.putInt("metricsInterval", metricsInterval);
+		writer.putInt("blackBoxTriggers", blackBoxTriggers);
+		writer.putBoolean("showSpectrum", showSpectrum);
+		writer.putBoolean("nativeAudio", nativeAudio);
+		writer.putBoolean("fixedPoint", fixedPoint);
+		writer.putBoolean("multiCarrier", multiCarrier);
+		writer.putBoolean("bandRestricted", bandRestricted);
+		writer.putString("callSign", callSign);
+		writer.putString("draftText", draftText);
+		writer.putString("password", password);
+	}
+}
@@ -0,0 +1,57 @@
+/*
+Spectrum and waterfall view
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+package com.aicodix.rattlegram;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.View;
+
+public class SpectrumView extends View {
+	private final Rect source = new Rect();
+	private final Rect target = new Rect();
+	private Bitmap spectrum;
+	private Bitmap spectrogram;
+	private int height;
+	private int row;
+
+	public SpectrumView(Context context) {
+		super(context);
+	}
+
+	public SpectrumView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+	}
+
+	// the spectrogram bitmap holds every row twice, see Decoder::update_spectrogram
+	public void setBitmaps(Bitmap spectrum, Bitmap spectrogram) {
+		this.spectrum = spectrum;
+		this.spectrogram = spectrogram;
+		height = spectrogram.getHeight() / 2;
+		row = 0;
+	}
+
+	public void setRow(int row) {
+		this.row = row;
+		invalidate();
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		if (spectrum == null || spectrogram == null)
+			return;
+		int half = getHeight() / 2;
+		source.set(0, 0, spectrum.getWidth(), spectrum.getHeight());
+		target.set(0, 0, getWidth(), half);
+		canvas.drawBitmap(spectrum, source, target, null);
+		source.set(0, row, spectrogram.getWidth(), row + height);
+		target.set(0, half, getWidth(), getHeight());
+		canvas.drawBitmap(spectrogram, source, target, null);
+	}
+}
@@ -0,0 +1,140 @@
+/*
+Benchmarks of the Java side of sending and receiving a message
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+package com.aicodix.rattlegram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import javax.crypto.SecretKey;
+
+/*
+Everything the UI thread does per message besides the modem itself.
+The ArrayAdapter of the message list and the SharedPreferences.Editor
+are stood in for by an ArrayList and a HashMap, doing the same inserts,
+removes and puts as addString and storeSettings in MainActivity, with
+the settings going through the same Settings class.
+Run with "-prof gc" to see the allocation rate next to the latency.
+*/
+@State(Scope.Thread)
+public class MessagePathBenchmark {
+	private static final String PASSWORD = "password";
+	private static final String CALL_SIGN = "ANONYMOUS";
+	private static final String TEXT = "The quick brown fox jumps over the lazy dog. 0123456789 The quick brown fox jumps over";
+	private final ArrayList<String> messages = new ArrayList<>();
+	private final HashMap<String, Object> preferences = new HashMap<>();
+	private final Settings settings = new Settings();
+	private final Settings.Writer writer = new Settings.Writer() {
+		@Override
+		public void putInt(String key, int value) {
+			preferences.put(key, value);
+		}
+
+		@Override
+		public void putBoolean(String key, boolean value) {
+			preferences.put(key, value);
+		}
+
+		@Override
+		public void putString(String key, String value) {
+			preferences.put(key, value);
+		}
+	};
+	private MessageCipher cipher;
+	private MessageLog messageLog;
+	private byte[] payload;
+
+	@Setup
+	public void setup() throws Exception {
+		settings.callSign = CALL_SIGN;
+		settings.password = PASSWORD;
+		cipher = new MessageCipher(PASSWORD);
+		messageLog = new MessageLog("%1$s - %2$s - %3$s", "%1$s - %2$s - %3$s:\n%4$s");
+		// what the decoder hands over: always 170 bytes, zero padded
+		payload = Arrays.copyOf(cipher.encrypt(TEXT), 170);
+		while (messages.size() < MessageLog.CAPACITY)
+			messages.add(messageLog.message(CALL_SIGN, "received", TEXT));
+	}
+
+	private void storeSettings() {
+		settings.write(writer);
+		for (int i = 0; i < messages.size(); ++i)
+			preferences.put(MessageLog.key(i), messages.get(i));
+	}
+
+	private void addString(String str) {
+		int count = MessageLog.CAPACITY;
+		if (messages.size() >= count)
+			messages.remove(count - 1);
+		messages.add(0, str);
+		storeSettings();
+	}
+
+	// what every message paid before the key got cached
+	@Benchmark
+	public SecretKey deriveKey() throws Exception {
+		return MessageCipher.deriveKey(PASSWORD);
+	}
+
+	@Benchmark
+	public byte[] encryptText() throws Exception {
+		return cipher.encrypt(TEXT);
+	}
+
+	@Benchmark
+	public byte[] decryptText() throws Exception {
+		return cipher.decrypt(payload);
+	}
+
+	@Benchmark
+	public byte[] readN() throws Exception {
+		return MessageCipher.readN(new ByteArrayInputStream(payload), payload.length);
+	}
+
+	@Benchmark
+	public byte[] callTerm() {
+		return MessageLog.callTerm(CALL_SIGN);
+	}
+
+	@Benchmark
+	public String addLine() {
+		return messageLog.line(CALL_SIGN, "ping");
+	}
+
+	@Benchmark
+	public String addMessage() {
+		return messageLog.message(CALL_SIGN, "received", TEXT);
+	}
+
+	@Benchmark
+	public int storeMessage() {
+		addString(TEXT);
+		return preferences.size();
+	}
+
+	// transmitMessage up to the encoder, and the line it adds afterwards
+	@Benchmark
+	public int transmit() throws Exception {
+		byte[] call = MessageLog.callTerm(CALL_SIGN);
+		byte[] mesg = cipher.encrypt(TEXT);
+		addString(messageLog.message(CALL_SIGN, "transmitted", TEXT));
+		return call.length + mesg.length;
+	}
+
+	// handleEvent for a decoded payload
+	@Benchmark
+	public int receive() throws Exception {
+		String text = new String(cipher.decrypt(payload)).trim();
+		addString(messageLog.message(CALL_SIGN, "received", text));
+		return text.length();
+	}
+}
@@ -0,0 +1,227 @@
+/*
+Java native interface to C++ encoder and decoder for the JVM on a host
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+#include <jni.h>
+#include <algorithm>
+#include <cstring>
+#define assert(expr) do {} while (0)
+#include "modem_factory.hh"
+
+// every Java object owns its own instance, so nothing here is shared between threads
+
+static EncoderInterface *toEncoder(jlong handle) {
+	return reinterpret_cast<EncoderInterface *>(handle);
+}
+
+static DecoderInterface *toDecoder(jlong handle) {
+	return reinterpret_cast<DecoderInterface *>(handle);
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_aicodix_rattlegram_core_Encoder_create(
+	JNIEnv *,
+	jclass,
+	jint sampleRate) {
+	return reinterpret_cast<jlong>(createEncoder(sampleRate));
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_aicodix_rattlegram_core_Encoder_destroy(
+	JNIEnv *,
+	jclass,
+	jlong handle) {
+	delete toEncoder(handle);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_aicodix_rattlegram_core_Encoder_configure(
+	JNIEnv *env,
+	jclass,
+	jlong handle,
+	jbyteArray JNI_payload,
+	jbyteArray JNI_callSign,
+	jint carrierFrequency,
+	jint noiseSymbols,
+	jboolean fancyHeader) {
+
+	jbyte *payload, *callSign;
+	payload = env->GetByteArrayElements(JNI_payload, nullptr);
+	if (!payload)
+		goto payloadFail;
+	callSign = env->GetByteArrayElements(JNI_callSign, nullptr);
+	if (!callSign)
+		goto callSignFail;
+
+	toEncoder(handle)->configure(
+		reinterpret_cast<uint8_t *>(payload),
+		env->GetArrayLength(JNI_payload),
+		reinterpret_cast<int8_t *>(callSign),
+		carrierFrequency,
+		noiseSymbols,
+		fancyHeader);
+
+	env->ReleaseByteArrayElements(JNI_callSign, callSign, JNI_ABORT);
+	callSignFail:
+	env->ReleaseByteArrayElements(JNI_payload, payload, JNI_ABORT);
+	payloadFail:;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_aicodix_rattlegram_core_Encoder_paprEffort(
+	JNIEnv *,
+	jclass,
+	jlong handle,
+	jint effort) {
+	toEncoder(handle)->papr_effort(effort);
+}
+
+extern "C" JNIEXPORT jfloat JNICALL
+Java_com_aicodix_rattlegram_core_Encoder_papr(
+	JNIEnv *,
+	jclass,
+	jlong handle) {
+	return toEncoder(handle)->papr();
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_aicodix_rattlegram_core_Encoder_length(
+	JNIEnv *,
+	jclass,
+	jlong handle) {
+	return toEncoder(handle)->length();
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_aicodix_rattlegram_core_Encoder_render(
+	JNIEnv *env,
+	jclass,
+	jlong handle,
+	jshortArray JNI_audioBuffer,
+	jint channelSelect) {
+
+	jint frames = 0;
+	EncoderInterface *encoder = toEncoder(handle);
+
+	if (env->GetArrayLength(JNI_audioBuffer) < encoder->length() * (channelSelect ? 2 : 1))
+		return frames;
+
+	jshort *audioBuffer;
+	audioBuffer = env->GetShortArrayElements(JNI_audioBuffer, nullptr);
+	if (!audioBuffer)
+		goto audioBufferFail;
+
+	frames = encoder->render(audioBuffer, channelSelect);
+
+	env->ReleaseShortArrayElements(JNI_audioBuffer, audioBuffer, 0);
+	audioBufferFail:
+
+	return frames;
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_aicodix_rattlegram_core_Decoder_create(
+	JNIEnv *,
+	jclass,
+	jint sampleRate) {
+	return reinterpret_cast<jlong>(createDecoder(sampleRate));
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_aicodix_rattlegram_core_Decoder_destroy(
+	JNIEnv *,
+	jclass,
+	jlong handle) {
+	delete toDecoder(handle);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_aicodix_rattlegram_core_Decoder_fixedPoint(
+	JNIEnv *,
+	jclass,
+	jlong handle,
+	jboolean enable) {
+	toDecoder(handle)->fixed_point(enable);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_aicodix_rattlegram_core_Decoder_multiCarrier(
+	JNIEnv *,
+	jclass,
+	jlong handle,
+	jboolean enable) {
+	toDecoder(handle)->multi_carrier(enable);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_aicodix_rattlegram_core_Decoder_lost(
+	JNIEnv *,
+	jclass,
+	jlong handle,
+	jint frameCount) {
+	toDecoder(handle)->lost(frameCount);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_aicodix_rattlegram_core_Decoder_carrierRange(
+	JNIEnv *,
+	jclass,
+	jlong handle,
+	jint minFrequency,
+	jint maxFrequency) {
+	toDecoder(handle)->carrier_range(minFrequency, maxFrequency);
+}
+
+/*
+Feeds the frames in periods of 20 ms and drains the events after each one.
+Stops early once the direct ByteBuffer could no longer take all events of
+another period, stores the number of events in eventCount[0] and returns
+the number of frames consumed.
+*/
+extern "C" JNIEXPORT jint JNICALL
+Java_com_aicodix_rattlegram_core_Decoder_feed(
+	JNIEnv *env,
+	jclass,
+	jlong handle,
+	jshortArray JNI_audioBuffer,
+	jint offset,
+	jint frameCount,
+	jint channelSelect,
+	jobject JNI_events,
+	jintArray JNI_eventCount) {
+
+	DecoderInterface *decoder = toDecoder(handle);
+	auto events = reinterpret_cast<DecoderEvent *>(env->GetDirectBufferAddress(JNI_events));
+	jlong capacity = env->GetDirectBufferCapacity(JNI_events) / (jlong) sizeof(DecoderEvent);
+	const int reserve = DecoderInterface::process_events;
+	if (!events || capacity < reserve)
+		return 0;
+
+	int channels = channelSelect ? 2 : 1;
+	int period = decoder->rate() / 50;
+	jint frames = 0;
+	jint count = 0;
+
+	jshort *audioBuffer;
+	audioBuffer = env->GetShortArrayElements(JNI_audioBuffer, nullptr);
+	if (!audioBuffer)
+		goto audioBufferFail;
+
+	while (frames < frameCount && capacity - count >= reserve) {
+		int length = std::min(period, frameCount - frames);
+		if (decoder->feed(
+			reinterpret_cast<int16_t *>(audioBuffer + channels * (offset + frames)),
+			length, channelSelect))
+			decoder->process();
+		count += decoder->poll(events + count, (int) (capacity - count));
+		frames += length;
+	}
+
+	env->ReleaseShortArrayElements(JNI_audioBuffer, audioBuffer, JNI_ABORT);
+	audioBufferFail:
+
+	env->SetIntArrayRegion(JNI_eventCount, 0, 1, &count);
+	return frames;
+}
@@ -0,0 +1,109 @@
+/*
+COFDMTV decoder
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+package com.aicodix.rattlegram.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.function.Consumer;
+
+/*
+Not thread safe, use one instance per audio feed.
+Channel select: 0 mono, 1 first, 2 second, 3 summation of both,
+4 analytic I/Q, the last four read interleaved stereo frames.
+*/
+public class Decoder implements AutoCloseable {
+	private static final int EVENT_COUNT = 16;
+	private final ByteBuffer events = ByteBuffer.allocateDirect(EVENT_COUNT * DecoderEvent.SIZE).order(ByteOrder.nativeOrder());
+	private final int[] eventCount = new int[1];
+	private final int sampleRate;
+	private long handle;
+
+	public Decoder(int sampleRate) {
+		NativeLibrary.load();
+		handle = create(sampleRate);
+		if (handle == 0)
+			throw new IllegalArgumentException("Unsupported sample rate: " + sampleRate);
+		this.sampleRate = sampleRate;
+	}
+
+	public int sampleRate() {
+		return sampleRate;
+	}
+
+	// Q15 front end, only used at a sample rate of 8000 Hz
+	public void fixedPoint(boolean enable) {
+		fixedPoint(checked(), enable);
+	}
+
+	// also decodes bursts that overlap in time on different carriers
+	public void multiCarrier(boolean enable) {
+		multiCarrier(checked(), enable);
+	}
+
+	// ignores bursts with their carrier outside of minFrequency to maxFrequency Hz
+	public void carrierRange(int minFrequency, int maxFrequency) {
+		if (minFrequency > maxFrequency)
+			throw new IllegalArgumentException("Empty carrier range: " + minFrequency + " > " + maxFrequency);
+		carrierRange(checked(), minFrequency, maxFrequency);
+	}
+
+	// feeds any number of frames and hands the events to the listener on the calling thread
+	public void feed(short[] audioBuffer, int offset, int frameCount, int channelSelect, Consumer<DecoderEvent> listener) {
+		int channels = channelSelect == 0 ? 1 : 2;
+		if (offset < 0 || frameCount < 0 || channels * (offset + frameCount) > audioBuffer.length)
+			throw new IndexOutOfBoundsException();
+		long decoder = checked();
+		while (frameCount > 0) {
+			int frames = feed(decoder, audioBuffer, offset, frameCount, channelSelect, events, eventCount);
+			if (frames <= 0)
+				throw new IllegalStateException("Native decoder consumed no frames");
+			for (int i = 0; i < eventCount[0]; ++i)
+				listener.accept(DecoderEvent.read(events, i));
+			offset += frames;
+			frameCount -= frames;
+		}
+	}
+
+	public void feed(short[] audioBuffer, int channelSelect, Consumer<DecoderEvent> listener) {
+		feed(audioBuffer, 0, audioBuffer.length / (channelSelect == 0 ? 1 : 2), channelSelect, listener);
+	}
+
+	// frames that went missing after the ones fed so far, bursts given up on show up with the next feed
+	public void lost(int frameCount) {
+		if (frameCount < 0)
+			throw new IllegalArgumentException("Negative frame count: " + frameCount);
+		lost(checked(), frameCount);
+	}
+
+	@Override
+	public void close() {
+		if (handle == 0)
+			return;
+		destroy(handle);
+		handle = 0;
+	}
+
+	private long checked() {
+		if (handle == 0)
+			throw new IllegalStateException("Decoder already closed");
+		return handle;
+	}
+
+	private static native long create(int sampleRate);
+
+	private static native void destroy(long handle);
+
+	private static native void fixedPoint(long handle, boolean enable);
+
+	private static native void multiCarrier(long handle, boolean enable);
+
+	private static native void carrierRange(long handle, int minFrequency, int maxFrequency);
+
+	private static native void lost(long handle, int frameCount);
+
+	private static native int feed(long handle, short[] audioBuffer, int offset, int frameCount, int channelSelect, ByteBuffer events, int[] eventCount);
+}
@@ -0,0 +1,73 @@
+/*
+Status reported by the decoder
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+package com.aicodix.rattlegram.core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public final class DecoderEvent {
+	public static final int STATUS_FAIL = 1;
+	public static final int STATUS_SYNC = 2;
+	public static final int STATUS_DONE = 3;
+	public static final int STATUS_NOPE = 5;
+	public static final int STATUS_PING = 6;
+	// keep in sync with struct DecoderEvent in decoder.hh
+	static final int SIZE = 216;
+	private static final int CALL_SIZE = 12;
+	private static final int PAYLOAD_SIZE = 170;
+	public final int status;
+	public final int mode;
+	// bit flips corrected by the polar decoder or negative on failure, only for STATUS_DONE
+	public final int result;
+	public final float carrierFrequencyOffset;
+	// samples at 8000 Hz from the start of the preamble to the end of the fed audio
+	public final int position;
+	// average precision of the payload symbols in dB, only for STATUS_DONE
+	public final float precision;
+	public final String callSign;
+	// only for STATUS_DONE with a non-negative result
+	public final byte[] payload;
+	// long bursts deliver their payload in several STATUS_DONE events, one per segment
+	public final int segment;
+	public final int segments;
+
+	private DecoderEvent(ByteBuffer buffer, int offset) {
+		status = buffer.getInt(offset);
+		mode = buffer.getInt(offset + 4);
+		result = buffer.getInt(offset + 8);
+		carrierFrequencyOffset = buffer.getFloat(offset + 12);
+		position = buffer.getInt(offset + 16);
+		precision = buffer.getFloat(offset + 20);
+		byte[] call = new byte[CALL_SIZE];
+		for (int i = 0; i < CALL_SIZE; ++i)
+			call[i] = buffer.get(offset + 24 + i);
+		callSign = new String(call, StandardCharsets.US_ASCII).trim();
+		if (status == STATUS_DONE && result >= 0) {
+			payload = new byte[PAYLOAD_SIZE];
+			for (int i = 0; i < PAYLOAD_SIZE; ++i)
+				payload[i] = buffer.get(offset + 24 + CALL_SIZE + i);
+		} else {
+			payload = null;
+		}
+		segment = buffer.getInt(offset + 208);
+		segments = buffer.getInt(offset + 212);
+	}
+
+	static DecoderEvent read(ByteBuffer buffer, int index) {
+		return new DecoderEvent(buffer, index * SIZE);
+	}
+
+	// the payload up to the first zero byte as text
+	public String text() {
+		if (payload == null)
+			return null;
+		int length = 0;
+		while (length < payload.length && payload[length] != 0)
+			++length;
+		return new String(payload, 0, length, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,114 @@
+/*
+Decodes many audio feeds concurrently
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+package com.aicodix.rattlegram.core;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/*
+Every feed owns a decoder of its own and runs on the shared thread pool,
+but never on more than one thread at a time: submitted audio is queued
+and drained by a single task, which is only rescheduled once it is done.
+Listeners get called from the pool threads.
+*/
+public class DecoderPool implements AutoCloseable {
+	private final ExecutorService executor;
+	private final Set<Feed> feeds = ConcurrentHashMap.newKeySet();
+
+	public DecoderPool(int threads) {
+		executor = Executors.newFixedThreadPool(threads);
+	}
+
+	public DecoderPool() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public Feed open(int sampleRate, int channelSelect, Consumer<DecoderEvent> listener) {
+		Feed feed = new Feed(new Decoder(sampleRate), channelSelect, listener);
+		feeds.add(feed);
+		return feed;
+	}
+
+	/*
+	Closes the feeds still open and waits for the queued audio of all feeds
+	to be decoded. When interrupted, the pool stops waiting but still frees
+	the decoders once their queued audio is done.
+	*/
+	@Override
+	public void close() {
+		for (Feed feed : feeds)
+			feed.close();
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public class Feed implements AutoCloseable {
+		private final ConcurrentLinkedQueue<short[]> queue = new ConcurrentLinkedQueue<>();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		private final Decoder decoder;
+		private final int channelSelect;
+		private final Consumer<DecoderEvent> listener;
+		private volatile boolean closed;
+
+		private Feed(Decoder decoder, int channelSelect, Consumer<DecoderEvent> listener) {
+			this.decoder = decoder;
+			this.channelSelect = channelSelect;
+			this.listener = listener;
+		}
+
+		// the buffer belongs to the feed from now on
+		public void submit(short[] audioBuffer) {
+			if (closed)
+				throw new IllegalStateException("Feed already closed");
+			queue.add(audioBuffer);
+			schedule();
+		}
+
+		// the decoder goes away after the queued audio was decoded
+		@Override
+		public void close() {
+			if (closed)
+				return;
+			closed = true;
+			feeds.remove(this);
+			schedule();
+		}
+
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true))
+				executor.execute(this::drain);
+		}
+
+		// a throwing listener loses the rest of its buffer, a feed still open keeps going
+		private void drain() {
+			try {
+				short[] audioBuffer;
+				while ((audioBuffer = queue.poll()) != null)
+					decoder.feed(audioBuffer, channelSelect, listener);
+			} finally {
+				if (closed) {
+					decoder.close();
+				} else {
+					scheduled.set(false);
+					// audio or close() might have slipped in before we let go
+					if (closed || !queue.isEmpty())
+						schedule();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*
+COFDMTV encoder
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+package com.aicodix.rattlegram.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+Not thread safe, but instances are independent of each other.
+Channel select: 0 mono, 1 first, 2 second, 4 analytic I/Q, the last three
+write interleaved stereo frames.
+*/
+public class Encoder implements AutoCloseable {
+	// payloads longer than a single segment go out as long bursts
+	public static final int SEGMENT_PAYLOAD = 170;
+	public static final int MAX_PAYLOAD = 16 * SEGMENT_PAYLOAD;
+	private final int sampleRate;
+	private long handle;
+
+	public Encoder(int sampleRate) {
+		NativeLibrary.load();
+		handle = create(sampleRate);
+		if (handle == 0)
+			throw new IllegalArgumentException("Unsupported sample rate: " + sampleRate);
+		this.sampleRate = sampleRate;
+	}
+
+	public int sampleRate() {
+		return sampleRate;
+	}
+
+	// an empty payload sends a ping, short ones end at their first zero byte
+	public void configure(byte[] payload, String callSign, int carrierFrequency, int noiseSymbols, boolean fancyHeader) {
+		if (payload.length > MAX_PAYLOAD)
+			throw new IllegalArgumentException("Payload longer than " + MAX_PAYLOAD + " bytes");
+		byte[] call = callSign.getBytes(StandardCharsets.US_ASCII);
+		configure(checked(), Arrays.copyOf(payload, Math.max(payload.length, SEGMENT_PAYLOAD)), Arrays.copyOf(call, call.length + 1), carrierFrequency, noiseSymbols, fancyHeader);
+	}
+
+	// clip and filter iterations per symbol from 0 to 8, 1 is the default
+	public void paprEffort(int effort) {
+		paprEffort(checked(), effort);
+	}
+
+	// peak-to-average power ratio in dB of the audio rendered since configure
+	public float papr() {
+		return papr(checked());
+	}
+
+	// frames left until the end of the burst
+	public int length() {
+		return length(checked());
+	}
+
+	// renders the rest of the burst and returns the number of frames written
+	public int render(short[] audioBuffer, int channelSelect) {
+		return render(checked(), audioBuffer, channelSelect);
+	}
+
+	public short[] render(int channelSelect) {
+		short[] audioBuffer = new short[length() * (channelSelect == 0 ? 1 : 2)];
+		render(audioBuffer, channelSelect);
+		return audioBuffer;
+	}
+
+	@Override
+	public void close() {
+		if (handle == 0)
+			return;
+		destroy(handle);
+		handle = 0;
+	}
+
+	private long checked() {
+		if (handle == 0)
+			throw new IllegalStateException("Encoder already closed");
+		return handle;
+	}
+
+	private static native long create(int sampleRate);
+
+	private static native void destroy(long handle);
+
+	private static native void configure(long handle, byte[] payload, byte[] callSign, int carrierFrequency, int noiseSymbols, boolean fancyHeader);
+
+	private static native void paprEffort(long handle, int effort);
+
+	private static native float papr(long handle);
+
+	private static native int length(long handle);
+
+	private static native int render(long handle, short[] audioBuffer, int channelSelect);
+}
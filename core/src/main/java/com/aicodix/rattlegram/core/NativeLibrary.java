@@ -0,0 +1,26 @@
+/*
+Loads the JNI library of the modem
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+package com.aicodix.rattlegram.core;
+
+final class NativeLibrary {
+	private static boolean loaded;
+
+	private NativeLibrary() {
+	}
+
+	// an absolute path in the system property rattlegram.library wins over java.library.path
+	static synchronized void load() {
+		if (loaded)
+			return;
+		String path = System.getProperty("rattlegram.library");
+		if (path != null)
+			System.load(path);
+		else
+			System.loadLibrary("rattlegram-core");
+		loaded = true;
+	}
+}